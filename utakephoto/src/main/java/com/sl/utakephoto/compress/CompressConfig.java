@@ -19,6 +19,37 @@ public class CompressConfig {
     private boolean focusAlpha;
 
     private int leastCompressSize = 100;
+    /**
+     * 输出文件大小上限(字节)，大于0时在同一张Bitmap上二分查找不超过上限的最高质量，0表示不限制
+     */
+    private long maxOutputBytes;
+    /**
+     * 输出的最大宽高和最大像素数(按摆正后的方向)，0表示不限制。
+     * 任意一项大于0时按比例缩小到精确尺寸，不再使用默认的Luban采样率
+     */
+    private int maxWidth;
+    private int maxHeight;
+    private long maxPixels;
+    /**
+     * 同时解码可以使用的堆内存比例，超出时后面的图片排队，0表示使用{@link com.sl.utakephoto.utils.MemoryBudget}的全局比例，默认{@link com.sl.utakephoto.utils.MemoryBudget#DEFAULT_SHARE}
+     */
+    private float decodeMemoryShare;
+    /**
+     * 输出格式，null时按原来的规则：focusAlpha并且源图可能透明时输出PNG，否则输出JPEG
+     */
+    private OutputFormat outputFormat;
+    /**
+     * 各输出格式的质量(1~100)，0表示使用默认值：需要压缩时60，只保存到targetUri时90
+     */
+    private final int[] qualities = new int[OutputFormat.values().length];
+    /**
+     * 没有设置targetUri或targetUri是目录时输出文件名的模板，见{@link com.sl.utakephoto.utils.FileNameGenerator}
+     */
+    private String fileNameTemplate;
+    /**
+     * 解码的Bitmap.Config策略，默认{@link DecodePolicy#QUALITY}
+     */
+    private DecodePolicy decodePolicy = DecodePolicy.QUALITY;
 
     private CompressConfig() {
     }
@@ -48,6 +79,90 @@ public class CompressConfig {
         this.leastCompressSize = leastCompressSize;
     }
 
+    public long getMaxOutputBytes() {
+        return maxOutputBytes;
+    }
+
+    public void setMaxOutputBytes(long maxOutputBytes) {
+        this.maxOutputBytes = maxOutputBytes;
+    }
+
+    public int getMaxWidth() {
+        return maxWidth;
+    }
+
+    public void setMaxWidth(int maxWidth) {
+        this.maxWidth = maxWidth;
+    }
+
+    public int getMaxHeight() {
+        return maxHeight;
+    }
+
+    public void setMaxHeight(int maxHeight) {
+        this.maxHeight = maxHeight;
+    }
+
+    public long getMaxPixels() {
+        return maxPixels;
+    }
+
+    public void setMaxPixels(long maxPixels) {
+        this.maxPixels = maxPixels;
+    }
+
+    public float getDecodeMemoryShare() {
+        return decodeMemoryShare;
+    }
+
+    /**
+     * 只影响使用这个配置的压缩，不修改{@link com.sl.utakephoto.utils.MemoryBudget}的全局比例
+     */
+    public void setDecodeMemoryShare(float decodeMemoryShare) {
+        if (!(decodeMemoryShare >= 0 && decodeMemoryShare <= 1)) {
+            throw new IllegalArgumentException("decodeMemoryShare must be in [0, 1]: " + decodeMemoryShare);
+        }
+        this.decodeMemoryShare = decodeMemoryShare;
+    }
+
+    public OutputFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    public void setOutputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     * @return 该格式设置的质量，没有设置时返回0
+     */
+    public int getQuality(OutputFormat format) {
+        return qualities[format.ordinal()];
+    }
+
+    public void setQuality(OutputFormat format, int quality) {
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("quality must be in [0, 100]: " + quality);
+        }
+        qualities[format.ordinal()] = quality;
+    }
+
+    public String getFileNameTemplate() {
+        return fileNameTemplate;
+    }
+
+    public void setFileNameTemplate(String fileNameTemplate) {
+        this.fileNameTemplate = fileNameTemplate;
+    }
+
+    public DecodePolicy getDecodePolicy() {
+        return decodePolicy;
+    }
+
+    public void setDecodePolicy(DecodePolicy decodePolicy) {
+        this.decodePolicy = decodePolicy == null ? DecodePolicy.QUALITY : decodePolicy;
+    }
+
     public static class Builder {
         private CompressConfig config;
 
@@ -70,6 +185,51 @@ public class CompressConfig {
             return this;
         }
 
+        public Builder setMaxOutputBytes(long maxOutputBytes) {
+            config.setMaxOutputBytes(maxOutputBytes);
+            return this;
+        }
+
+        public Builder setMaxWidth(int maxWidth) {
+            config.setMaxWidth(maxWidth);
+            return this;
+        }
+
+        public Builder setMaxHeight(int maxHeight) {
+            config.setMaxHeight(maxHeight);
+            return this;
+        }
+
+        public Builder setMaxPixels(long maxPixels) {
+            config.setMaxPixels(maxPixels);
+            return this;
+        }
+
+        public Builder setDecodeMemoryShare(float decodeMemoryShare) {
+            config.setDecodeMemoryShare(decodeMemoryShare);
+            return this;
+        }
+
+        public Builder setOutputFormat(OutputFormat outputFormat) {
+            config.setOutputFormat(outputFormat);
+            return this;
+        }
+
+        public Builder setQuality(OutputFormat format, int quality) {
+            config.setQuality(format, quality);
+            return this;
+        }
+
+        public Builder setFileNameTemplate(String fileNameTemplate) {
+            config.setFileNameTemplate(fileNameTemplate);
+            return this;
+        }
+
+        public Builder setDecodePolicy(DecodePolicy decodePolicy) {
+            config.setDecodePolicy(decodePolicy);
+            return this;
+        }
+
         public CompressConfig create() {
             return config;
         }
@@ -0,0 +1,80 @@
+package com.sl.utakephoto.compress;
+
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 压缩用的线程池，不再和应用共用AsyncTask.SERIAL_EXECUTOR。
+ * 线程数按CPU核数和堆大小取较小值，每张图解码+编码大约要占一张原图的内存，堆小的机器并发太多容易OOM。
+ * 空闲一段时间后线程全部退出
+ */
+public final class CompressExecutor implements Executor {
+    /**
+     * 每个并发任务预留的堆内存，大约是一张12M像素ARGB_8888图片缩小后加编码缓冲区
+     */
+    private static final long MEMORY_PER_TASK = 48L * 1024 * 1024;
+    private static final int MAX_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static volatile CompressExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+
+    public static CompressExecutor getInstance() {
+        if (instance == null) {
+            synchronized (CompressExecutor.class) {
+                if (instance == null) {
+                    instance = new CompressExecutor();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private CompressExecutor() {
+        int threads = computeThreads(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory());
+        executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new CompressThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return 并发数，至少为1，不超过核数、堆内存允许的数量和{@link #MAX_THREADS}
+     */
+    static int computeThreads(int processors, long maxMemory) {
+        int byMemory = (int) Math.min(Integer.MAX_VALUE, maxMemory / MEMORY_PER_TASK);
+        return Math.max(1, Math.min(MAX_THREADS, Math.min(processors, byMemory)));
+    }
+
+    public int getPoolSize() {
+        return executor.getMaximumPoolSize();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        executor.execute(command);
+    }
+
+    private static final class CompressThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "uTakePhoto-compress-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -2,9 +2,22 @@ package com.sl.utakephoto.compress;
 
 import android.net.Uri;
 
+import java.util.List;
+
 
 public interface CompressImage {
-    void compress();
+    /**
+     * {@link CompressProgressListener#onProgress}的阶段
+     */
+    int STAGE_DECODE = 0;
+    int STAGE_ROTATE = 1;
+    int STAGE_ENCODE = 2;
+    int STAGE_WRITE = 3;
+
+    /**
+     * @return 可以取消的句柄
+     */
+    CompressJob compress();
 
     /**
      * 压缩结果监听器
@@ -22,4 +35,29 @@ public interface CompressImage {
         void onError(Throwable obj);
 
     }
+
+    /**
+     * 需要进度、压缩详情和批量完成通知时实现这个接口，只实现{@link CompressListener}的代码不受影响
+     */
+    interface CompressProgressListener extends CompressListener {
+        /**
+         * 第index张图片进入了新的阶段
+         *
+         * @param stage {@link #STAGE_DECODE}、{@link #STAGE_ROTATE}、{@link #STAGE_ENCODE}或{@link #STAGE_WRITE}，
+         *              不需要解码的图片只有{@link #STAGE_WRITE}
+         */
+        void onProgress(int index, int total, int stage);
+
+        /**
+         * 在 {@link #onSuccess(Uri)} 之后回调，带有使用的质量、编码次数和输出大小
+         */
+        void onResult(CompressResult result);
+
+        /**
+         * 所有图片都回调了onSuccess或onError之后回调
+         *
+         * @param results 与输入顺序一致，失败的图片为null
+         */
+        void onComplete(List<CompressResult> results);
+    }
 }
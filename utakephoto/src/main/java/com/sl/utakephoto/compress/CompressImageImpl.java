@@ -1,32 +1,50 @@
 package com.sl.utakephoto.compress;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 
+import com.sl.utakephoto.jpeg.JpegTransform;
+import com.sl.utakephoto.pool.LruArrayPool;
+import com.sl.utakephoto.pool.LruBitmapPool;
+import com.sl.utakephoto.probe.ImageFormat;
+import com.sl.utakephoto.probe.ImageInfo;
+import com.sl.utakephoto.probe.ImageInfoCache;
+import com.sl.utakephoto.probe.MediaStoreBatchProbe;
+import com.sl.utakephoto.utils.FileNameGenerator;
 import com.sl.utakephoto.utils.ImgUtil;
+import com.sl.utakephoto.utils.MemoryBudget;
 import com.sl.utakephoto.exception.TakeException;
 import com.sl.utakephoto.utils.TUriUtils;
+import com.sl.utakephoto.utils.UriOutputStream;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 
 import static com.sl.utakephoto.utils.TConstant.TAG;
 
-public class CompressImageImpl implements CompressImage, Handler.Callback {
+public class CompressImageImpl implements CompressImage, CompressJob, Handler.Callback {
     private final Handler mHandler;
     private final Context context;
     private List<Uri> images;
@@ -34,24 +52,79 @@ public class CompressImageImpl implements CompressImage, Handler.Callback {
     private static final int MSG_COMPRESS_SUCCESS = 0;
     private static final int MSG_COMPRESS_START = 1;
     private static final int MSG_COMPRESS_ERROR = 2;
+    private static final int MSG_COMPRESS_COMPLETE = 3;
+    private static final int MSG_COMPRESS_PROGRESS = 4;
+    /**
+     * 超过leastCompressSize时的压缩质量
+     */
+    private static final int DEFAULT_QUALITY = 60;
+    /**
+     * 不需要压缩、只保存到targetUri时的质量
+     */
+    private static final int SAVE_QUALITY = 90;
+
+    /**
+     * 批量探测的结果，MediaStore的Uri一次查询得到，格式还没有读文件头确认
+     */
+    private final Map<Uri, ImageInfo> probed = Collections.synchronizedMap(new HashMap<Uri, ImageInfo>());
 
     private int leastCompressSize;
     private Uri targetUri;
     private boolean focusAlpha;
+    private OutputFormat outputFormat;
+    private CompressConfig config;
+    private FileNameGenerator nameGenerator = FileNameGenerator.getDefault();
+    private DecodePolicy decodePolicy = DecodePolicy.QUALITY;
+    private int batchSize;
+    private long maxOutputBytes;
+    private int maxWidth;
+    private int maxHeight;
+    private long maxPixels;
+    /**
+     * 本次压缩的解码内存比例，0时使用{@link MemoryBudget}的全局预算
+     */
+    private float decodeMemoryShare;
+
+    /**
+     * 并行压缩的结果按输入顺序回调，以下只在主线程访问
+     */
+    private CompressResult[] results;
+    private Throwable[] errors;
+    private boolean[] finished;
+    private int nextDelivery;
+    private volatile boolean cancelled;
 
     @Override
     public boolean handleMessage(@NonNull Message msg) {
-        if (mCompressListener == null) return false;
+        if (mCompressListener == null || cancelled) return false;
 
         switch (msg.what) {
             case MSG_COMPRESS_START:
                 mCompressListener.onStart();
                 break;
+            case MSG_COMPRESS_PROGRESS:
+                if (mCompressListener instanceof CompressImage.CompressProgressListener) {
+                    ((CompressImage.CompressProgressListener) mCompressListener)
+                            .onProgress(msg.arg1, finished.length, msg.arg2);
+                }
+                break;
             case MSG_COMPRESS_SUCCESS:
-                mCompressListener.onSuccess((Uri) msg.obj);
+                results[msg.arg1] = (CompressResult) msg.obj;
+                finished[msg.arg1] = true;
+                deliverInOrder();
                 break;
             case MSG_COMPRESS_ERROR:
-                mCompressListener.onError((Throwable) msg.obj);
+                errors[msg.arg1] = (Throwable) msg.obj;
+                finished[msg.arg1] = true;
+                deliverInOrder();
+                break;
+            case MSG_COMPRESS_COMPLETE:
+                Log.d(TAG, "compress complete, " + LruBitmapPool.getInstance(context)
+                        + ", " + LruArrayPool.getInstance());
+                if (mCompressListener instanceof CompressImage.CompressProgressListener) {
+                    ((CompressImage.CompressProgressListener) mCompressListener)
+                            .onComplete(Collections.unmodifiableList(Arrays.asList(results)));
+                }
                 break;
             default:
                 break;
@@ -59,6 +132,27 @@ public class CompressImageImpl implements CompressImage, Handler.Callback {
         return false;
     }
 
+    /**
+     * 先完成的图片等前面的图片回调后再回调，全部回调后通知onComplete
+     */
+    private void deliverInOrder() {
+        while (nextDelivery < finished.length && finished[nextDelivery]) {
+            CompressResult result = results[nextDelivery];
+            if (result != null) {
+                mCompressListener.onSuccess(result.getOutput());
+                if (mCompressListener instanceof CompressImage.CompressProgressListener) {
+                    ((CompressImage.CompressProgressListener) mCompressListener).onResult(result);
+                }
+            } else {
+                mCompressListener.onError(errors[nextDelivery]);
+            }
+            nextDelivery++;
+        }
+        if (nextDelivery == finished.length) {
+            mHandler.sendEmptyMessage(MSG_COMPRESS_COMPLETE);
+        }
+    }
+
     public static CompressImage of(Context context, CompressConfig config, List<Uri> images, CompressImage.CompressListener listener) {
         return new CompressImageImpl(context, config, images, listener);
     }
@@ -72,101 +166,473 @@ public class CompressImageImpl implements CompressImage, Handler.Callback {
             leastCompressSize = config.getLeastCompressSize();
             targetUri = config.getTargetUri();
             focusAlpha = config.isFocusAlpha();
+            outputFormat = config.getOutputFormat();
+            decodePolicy = config.getDecodePolicy();
+            if (config.getFileNameTemplate() != null) {
+                nameGenerator = new FileNameGenerator(config.getFileNameTemplate());
+            }
+            this.config = config;
+            maxOutputBytes = config.getMaxOutputBytes();
+            maxWidth = config.getMaxWidth();
+            maxHeight = config.getMaxHeight();
+            maxPixels = config.getMaxPixels();
+            decodeMemoryShare = config.getDecodeMemoryShare();
         }
 
     }
 
+    /**
+     * 在{@link CompressExecutor}上并行压缩，结果仍按输入顺序回调。一个实例同时只能执行一次
+     */
     @Override
-    public void compress() {
-        if (images == null || images.size() == 0 && mCompressListener != null) {
-            mCompressListener.onError(new NullPointerException("image file cannot be null"));
-        }
-
-        Iterator<Uri> iterator = images.iterator();
-
-        while (iterator.hasNext()) {
-            final Uri path = iterator.next();
-
-            AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        mHandler.sendMessage(mHandler.obtainMessage(MSG_COMPRESS_START));
-                        Uri result = compress(path);
-                        mHandler.sendMessage(mHandler.obtainMessage(MSG_COMPRESS_SUCCESS, result));
-                    } catch (IOException e) {
-                        mHandler.sendMessage(mHandler.obtainMessage(MSG_COMPRESS_ERROR, e));
-                    } catch (TakeException e) {
-                        e.printStackTrace();
-                        mHandler.sendMessage(mHandler.obtainMessage(MSG_COMPRESS_ERROR, e));
+    public CompressJob compress() {
+        if (images == null || images.size() == 0) {
+            if (mCompressListener != null) {
+                mCompressListener.onError(new NullPointerException("image file cannot be null"));
+            }
+            return this;
+        }
+        final List<Uri> batch = new ArrayList<>(images);
+        batchSize = batch.size();
+        results = new CompressResult[batch.size()];
+        errors = new Throwable[batch.size()];
+        finished = new boolean[batch.size()];
+        nextDelivery = 0;
+
+        final CompressExecutor executor = CompressExecutor.getInstance();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    probed.putAll(MediaStoreBatchProbe.probe(context, batch));
+                } catch (RuntimeException e) {
+                    //查不到时每张图在自己的任务里解析文件头，错误也在那里回调
+                    Log.w(TAG, "batch probe failed", e);
+                } finally {
+                    for (int i = 0; i < batch.size(); i++) {
+                        executor.execute(new CompressTask(i, batch.get(i)));
                     }
                 }
-            });
+            }
+        });
+        return this;
+    }
+
+    /**
+     * 可以在任意线程调用，调用后不再回调listener
+     */
+    @Override
+    public void cancel() {
+        cancelled = true;
+        mHandler.removeCallbacksAndMessages(null);
+    }
 
-//            iterator.remove();
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 在各阶段之间调用，已取消时抛出CancellationException结束这张图片
+     */
+    private void enterStage(int index, int stage) {
+        if (cancelled) {
+            throw new CancellationException();
         }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_COMPRESS_PROGRESS, index, stage));
     }
 
-    private Uri compress(final Uri uri) throws IOException, TakeException {
-        InputStream inputStream = context.getContentResolver().openInputStream(uri);
-        if (needCompress(leastCompressSize, inputStream)) {
+    private class CompressTask implements Runnable {
+        private final int index;
+        private final Uri uri;
+
+        CompressTask(int index, Uri uri) {
+            this.index = index;
+            this.uri = uri;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            try {
+                mHandler.sendMessage(mHandler.obtainMessage(MSG_COMPRESS_START, index, 0));
+                CompressResult result = compress(index, uri);
+                mHandler.sendMessage(mHandler.obtainMessage(MSG_COMPRESS_SUCCESS, index, 0, result));
+            } catch (IOException e) {
+                mHandler.sendMessage(mHandler.obtainMessage(MSG_COMPRESS_ERROR, index, 0, e));
+            } catch (TakeException e) {
+                e.printStackTrace();
+                mHandler.sendMessage(mHandler.obtainMessage(MSG_COMPRESS_ERROR, index, 0, e));
+            } catch (CancellationException e) {
+                Log.d(TAG, "compress cancelled: " + uri);
+            } catch (RuntimeException e) {
+                //不能让一张图的异常卡住后面结果的回调
+                e.printStackTrace();
+                mHandler.sendMessage(mHandler.obtainMessage(MSG_COMPRESS_ERROR, index, 0, e));
+            } catch (OutOfMemoryError e) {
+                //预算只是估算，OOM时这张图失败，清空池子后继续处理后面的图片
+                e.printStackTrace();
+                LruBitmapPool.getInstance(context).onLowMemory();
+                mHandler.sendMessage(mHandler.obtainMessage(MSG_COMPRESS_ERROR, index, 0, e));
+            }
+        }
+    }
+
+    private CompressResult compress(int index, final Uri uri) throws IOException, TakeException {
+        ImageInfo info = probed.remove(uri);
+        if (info != null) {
+            info = MediaStoreBatchProbe.sniffFormat(context, uri, info);
+        }
+        if (info == null) {
+            info = ImageInfoCache.getInstance().get(context, uri);
+        }
+        int[] target = targetSize(info);
+        if (target != null || needCompress(leastCompressSize, info)) {
             BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inSampleSize = ImgUtil.computeSize(inputStream);
-            Bitmap tagBitmap = BitmapFactory.decodeStream(context.getContentResolver().openInputStream(uri), null, options);
-            ByteArrayOutputStream stream = new ByteArrayOutputStream();
-            if (ImgUtil.JPEG_MIME_TYPE(context,uri)) {
-                tagBitmap = ImgUtil.rotatingImage(tagBitmap, ImgUtil.getMetadataRotation(context, uri));
-            }
-            tagBitmap.compress(focusAlpha ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 60, stream);
-            tagBitmap.recycle();
-            targetUri = TUriUtils.checkCropUri(context, targetUri, ImgUtil.extSuffix(uri));
-            Log.e(TAG,"compress targetUri:"+targetUri);
-            OutputStream outputStream = context.getContentResolver().openOutputStream(targetUri);
-            if (outputStream != null) {
-                outputStream.write(stream.toByteArray());
+            if (target == null) {
+                options.inSampleSize = ImgUtil.computeSize(info.getWidth(), info.getHeight());
+            } else {
+                ImgUtil.setTargetSize(options, info.getWidth(), info.getHeight(), target[0], target[1]);
             }
-            outputStream.close();
-            stream.close();
-            inputStream.close();
-            return targetUri;
+            return encode(index, uri, info, options, target, DEFAULT_QUALITY);
         } else {
 
+            //输出格式和源图一致、大小没超过maxOutputBytes时才能保留原来的编码
+            boolean keepsEncoding = keepsEncoding(info);
             if (targetUri != null) {
-                //保存到指定路径
-                Bitmap tagBitmap = BitmapFactory.decodeStream(context.getContentResolver().openInputStream(uri));
-                ByteArrayOutputStream stream = new ByteArrayOutputStream();
-                if (ImgUtil.JPEG_MIME_TYPE(context,uri)) {
-                    tagBitmap = ImgUtil.rotatingImage(tagBitmap, ImgUtil.getMetadataRotation(context, uri));
+                //保存到指定路径，JPEG只需要旋转时在DCT系数上无损旋转，不重新编码
+                if (keepsEncoding && info.isJpeg() && info.getOrientation() != 0) {
+                    CompressResult result = rotateLossless(index, uri, info);
+                    if (result != null) {
+                        return result;
+                    }
                 }
-                tagBitmap.compress(focusAlpha ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 90, stream);
-                tagBitmap.recycle();
-                targetUri = TUriUtils.checkCropUri(context, targetUri, ImgUtil.extSuffix(uri));
+                //不需要旋转、缩放和转换格式时直接拷贝字节，不解码
+                if (canPassthrough(info)) {
+                    return passthrough(index, uri, info);
+                }
+                return encode(index, uri, info, null, null, SAVE_QUALITY);
+            }
+            //没有保存路径时原图只在满足设置的输出格式和大小上限时才能直接返回
+            if (!keepsEncoding && (outputFormat != null || maxOutputBytes > 0)) {
+                return encode(index, uri, info, null, null, SAVE_QUALITY);
+            }
+        }
+        return new CompressResult(uri, uri, CompressResult.NO_QUALITY, 0, info.getSize());
 
-                OutputStream outputStream = context.getContentResolver().openOutputStream(targetUri);
-                if (outputStream != null) {
-                    outputStream.write(stream.toByteArray());
+    }
+
+    /**
+     * 解码、旋转并编码到targetUri，设置了maxOutputBytes时查找不超过该大小的最高质量
+     */
+    private CompressResult encode(int index, Uri uri, ImageInfo info, BitmapFactory.Options options, int[] target, int quality)
+            throws IOException, TakeException {
+        if (options == null) {
+            options = new BitmapFactory.Options();
+        }
+        MemoryBudget budget = MemoryBudget.getInstance(context);
+        LruBitmapPool pool = LruBitmapPool.getInstance(context);
+        OutputFormat format = outputFormat(info);
+        //先确定Config，内存预估按它的每像素字节数计算
+        options.inPreferredConfig = decodePolicy.configFor(info.getFormat(), format);
+        //超大的图片按横条解码，内存只和输出尺寸有关
+        int[] size = TiledDecoder.shouldTile(info) ? outputSize(info, options, target) : null;
+        long cost = size != null ? TiledDecoder.cost(info, size[0], size[1], options.inPreferredConfig)
+                : decodeCost(info, options, target);
+        quality = qualityOf(format, quality);
+        //每张图单独的输出Uri，并行时不修改共享的targetUri
+        Uri output = outputUri(index, format.getImageFormat().getSuffix());
+        TargetSizeEncoder encoder = new TargetSizeEncoder();
+        long outputBytes;
+        budget.acquire(cost, decodeMemoryShare);
+        Bitmap tagBitmap = null;
+        try {
+            enterStage(index, STAGE_DECODE);
+            int angle = info.isJpeg() ? info.getOrientation() : 0;
+            if (size != null) {
+                tagBitmap = TiledDecoder.decode(context, uri, size[0], size[1], angle,
+                        options.inPreferredConfig, pool, this);
+                if (tagBitmap == null) {
+                    Log.w(TAG, "cannot decode " + uri + " in strips, decoding it whole");
+                } else {
+                    target = null;
+                    angle = 0;
                 }
-                if (outputStream != null) {
+            }
+            if (tagBitmap == null) {
+                tagBitmap = decode(uri, info, options, pool);
+            }
+            if (angle != 0 || target != null) {
+                //精确缩放和旋转合成一个Matrix，只绘制一次
+                enterStage(index, STAGE_ROTATE);
+                tagBitmap = ImgUtil.transform(tagBitmap, target != null ? target[0] : tagBitmap.getWidth(),
+                        target != null ? target[1] : tagBitmap.getHeight(), angle, pool);
+            }
+            enterStage(index, STAGE_ENCODE);
+            if (TargetSizeEncoder.needsSearch(format, maxOutputBytes)) {
+                //查找质量需要在内存里比较大小，最后一次性写出
+                ByteArrayOutputStream stream = encoder.encode(tagBitmap, format, quality, maxOutputBytes);
+                pool.put(tagBitmap);
+                tagBitmap = null;
+                enterStage(index, STAGE_WRITE);
+                outputBytes = write(output, stream);
+            } else {
+                //只编码一次，直接编码到目标文件，不经过ByteArrayOutputStream
+                UriOutputStream outputStream = UriOutputStream.open(context, output);
+                try {
+                    encoder.encodeTo(tagBitmap, format, quality, outputStream);
+                    //取消时关闭会丢弃临时文件
+                    enterStage(index, STAGE_WRITE);
+                    outputStream.commit();
+                } finally {
                     outputStream.close();
                 }
-                stream.close();
-                inputStream.close();
-                return targetUri;
+                outputBytes = outputStream.getWritten();
+            }
+        } finally {
+            //放回池里给下一张图片解码复用
+            pool.put(tagBitmap);
+            encoder.release();
+            budget.release(cost);
+        }
+        Log.d(TAG, "compress output:" + output + " quality:" + encoder.getQuality()
+                + " passes:" + encoder.getPasses() + " bytes:" + outputBytes);
+        ImageInfoCache.getInstance().invalidate(output);
+        return new CompressResult(uri, output, encoder.getQuality(), encoder.getPasses(), outputBytes);
+    }
+
+    private long write(Uri output, ByteArrayOutputStream stream) throws IOException {
+        UriOutputStream outputStream = UriOutputStream.open(context, output);
+        try {
+            stream.writeTo(outputStream);
+            outputStream.commit();
+        } finally {
+            outputStream.close();
+        }
+        return stream.size();
+    }
+
+    /**
+     * 每张图片自己的输出Uri：
+     * 没有targetUri时在应用私有目录按模板生成；targetUri是目录时在该目录下按模板生成；
+     * 批量压缩到同一个文件Uri时在文件名后加上"_下标"；批量压缩到同一个content Uri时只有第一张写入它，其余写到临时文件
+     */
+    private Uri outputUri(int index, String suffix) throws TakeException {
+        if (targetUri == null) {
+            return TUriUtils.getTempSchemeFileUri(context, nameGenerator, index, suffix);
+        }
+        if (ContentResolver.SCHEME_FILE.equals(targetUri.getScheme()) && targetUri.getPath() != null) {
+            File file = new File(targetUri.getPath());
+            if (file.isDirectory()) {
+                File output = nameGenerator.nextFile(file, index, suffix);
+                return TUriUtils.checkCropUri(context, Uri.fromFile(output), suffix);
+            }
+            if (batchSize > 1) {
+                String name = file.getName();
+                int dot = name.lastIndexOf('.');
+                String indexed = dot > 0 ? name.substring(0, dot) + "_" + index + name.substring(dot)
+                        : name + "_" + index;
+                return TUriUtils.checkCropUri(context, Uri.fromFile(new File(file.getParentFile(), indexed)), suffix);
             }
+        } else if (batchSize > 1 && index > 0) {
+            Log.w(TAG, "targetUri " + targetUri + " can only hold one image, image " + index + " goes to a temp file");
+            return TUriUtils.getTempSchemeFileUri(context, nameGenerator, index, suffix);
+        }
+        return TUriUtils.checkCropUri(context, targetUri, suffix);
+    }
+
+    /**
+     * 解码过程中的峰值内存：解码出的Bitmap，加上缩放或旋转时同时存在的一份副本
+     */
+    private static long decodeCost(ImageInfo info, BitmapFactory.Options options, int[] target) {
+        long decoded = MemoryBudget.estimate(info.getWidth(), info.getHeight(), options);
+        boolean rotate = info.isJpeg() && info.getOrientation() != 0;
+        if (target != null) {
+            Bitmap.Config config = options == null ? null : options.inPreferredConfig;
+            return decoded + (long) target[0] * target[1] * MemoryBudget.bytesPerPixel(config);
+        }
+        return rotate ? decoded * 2 : decoded;
+    }
+
+    /**
+     * @return 输出的宽高(存储方向，未旋转)：设置了目标尺寸时就是目标尺寸，否则是按inSampleSize采样后的尺寸
+     */
+    private static int[] outputSize(ImageInfo info, BitmapFactory.Options options, int[] target) {
+        if (target != null) {
+            return target;
         }
-        return uri;
+        int sampleSize = Math.max(1, options.inSampleSize);
+        return new int[]{(info.getWidth() + sampleSize - 1) / sampleSize, (info.getHeight() + sampleSize - 1) / sampleSize};
+    }
 
+    /**
+     * @return 按maxWidth/maxHeight/maxPixels缩小后的宽高(存储方向，未旋转)，没有限制或不需要缩小时返回null
+     */
+    private int[] targetSize(ImageInfo info) {
+        if ((maxWidth <= 0 && maxHeight <= 0 && maxPixels <= 0) || !info.hasBounds()) {
+            return null;
+        }
+        int width = info.getWidth();
+        int height = info.getHeight();
+        //限制针对摆正后的图片，只有JPEG会按方向旋转
+        boolean swap = info.isJpeg() && info.getOrientation() % 180 != 0;
+        double scale = swap ? ImgUtil.computeScale(height, width, maxWidth, maxHeight, maxPixels)
+                : ImgUtil.computeScale(width, height, maxWidth, maxHeight, maxPixels);
+        if (scale >= 1) {
+            return null;
+        }
+        return new int[]{Math.max(1, (int) (width * scale + 1e-6)), Math.max(1, (int) (height * scale + 1e-6))};
     }
 
+    /**
+     * 不裁边的无损旋转，宽高不是MCU整数倍、渐进式、系数超过解码预算等情况返回null，由调用方重新编码
+     *
+     * @return 输出结果，大小是实际写入的字节数
+     */
+    private CompressResult rotateLossless(int index, Uri uri, ImageInfo info) throws IOException, TakeException {
+        //DCT系数和解码Bitmap一样占用解码预算，整张图都放不下时走位图路径，可以缩小采样
+        MemoryBudget budget = MemoryBudget.getInstance(context);
+        long cost = JpegTransform.estimateMemory(info.getWidth(), info.getHeight());
+        if (!info.hasBounds() || cost > budget.getBudget(decodeMemoryShare)) {
+            return null;
+        }
+        Uri target = outputUri(index, ImageFormat.JPEG.getSuffix());
+        InputStream inputStream = context.getContentResolver().openInputStream(uri);
+        if (inputStream == null) {
+            throw new IOException("cannot open " + uri);
+        }
+        UriOutputStream outputStream = null;
+        budget.acquire(cost, decodeMemoryShare);
+        try {
+            enterStage(index, STAGE_WRITE);
+            outputStream = UriOutputStream.open(context, target);
+            //不支持时没有写入任何数据，关闭时丢弃临时文件
+            if (!rotate(inputStream, outputStream, info.getOrientation())) {
+                return null;
+            }
+            outputStream.commit();
+        } finally {
+            budget.release(cost);
+            inputStream.close();
+            if (outputStream != null) {
+                outputStream.close();
+            }
+        }
+        ImageInfoCache.getInstance().invalidate(target);
+        return new CompressResult(uri, target, CompressResult.NO_QUALITY, 0, outputStream.getWritten());
+    }
 
-    private boolean needCompress(int leastCompressSize, InputStream path) {
-        if (leastCompressSize > 0) {
+    /**
+     * 截断或者损坏的JPEG不能无损旋转，但BitmapFactory通常还能解码出能用的部分，改为重新编码
+     */
+    private static boolean rotate(InputStream in, UriOutputStream out, int degrees) {
+        try {
+            return JpegTransform.rotate(in, out, degrees, false);
+        } catch (Exception e) {
+            Log.w(TAG, "lossless rotation failed, re-encoding", e);
+            return false;
+        }
+    }
+
+    /**
+     * 源图已经是输出格式、方向正常并且没有超过maxOutputBytes时，原样拷贝即可
+     */
+    private boolean canPassthrough(ImageInfo info) {
+        if (info.isJpeg() && info.getOrientation() != 0) {
+            return false;
+        }
+        return keepsEncoding(info);
+    }
+
+    /**
+     * @return 源图已经是输出格式并且没有超过maxOutputBytes，不需要重新编码(方向另外处理)
+     */
+    private boolean keepsEncoding(ImageInfo info) {
+        if (maxOutputBytes > 0 && (info.getSize() == ImageInfo.UNKNOWN_SIZE || info.getSize() > maxOutputBytes)) {
+            return false;
+        }
+        return info.getFormat() == outputFormat(info).getImageFormat();
+    }
+
+    private CompressResult passthrough(int index, Uri uri, ImageInfo info) throws IOException, TakeException {
+        Uri output = outputUri(index, info.getFormat().getSuffix());
+        //openFileDescriptor得到整个文件，可以用FileChannel拷贝
+        ParcelFileDescriptor pfd = null;
+        InputStream inputStream;
+        try {
+            pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, "cannot open file descriptor for " + uri + ", copy the stream instead");
+        }
+        inputStream = pfd != null ? new FileInputStream(pfd.getFileDescriptor())
+                : context.getContentResolver().openInputStream(uri);
+        if (inputStream == null) {
+            throw new IOException("cannot open " + uri);
+        }
+        long outputBytes;
+        try {
+            enterStage(index, STAGE_WRITE);
+            UriOutputStream outputStream = UriOutputStream.open(context, output);
             try {
-                return path.available() > (leastCompressSize << 10);
-            } catch (IOException e) {
-                e.printStackTrace();
+                outputBytes = outputStream.transferFrom(inputStream);
+                outputStream.commit();
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            inputStream.close();
+            if (pfd != null) {
+                pfd.close();
             }
         }
+        Log.d(TAG, "compress passthrough output:" + output + " bytes:" + outputBytes);
+        ImageInfoCache.getInstance().invalidate(output);
+        return new CompressResult(uri, output, CompressResult.NO_QUALITY, 0, outputBytes, true);
+    }
+
+    /**
+     * 设置了outputFormat时使用设置的格式；否则只有源图可能带透明通道时才输出PNG，JPEG源图即使设置了focusAlpha也输出JPEG
+     */
+    private OutputFormat outputFormat(ImageInfo info) {
+        if (outputFormat != null) {
+            return outputFormat;
+        }
+        ImageFormat source = info.getFormat();
+        if (focusAlpha && (source.supportsAlpha() || source == ImageFormat.UNKNOWN)) {
+            return OutputFormat.PNG;
+        }
+        return OutputFormat.JPEG;
+    }
+
+    /**
+     * @param defaultQuality 没有为该格式设置质量时使用
+     */
+    private int qualityOf(OutputFormat format, int defaultQuality) {
+        int quality = config == null ? 0 : config.getQuality(format);
+        return quality > 0 ? quality : defaultQuality;
+    }
+
+    private Bitmap decode(Uri uri, ImageInfo info, BitmapFactory.Options options, LruBitmapPool pool)
+            throws IOException {
+        long byteCount = MemoryBudget.estimate(info.getWidth(), info.getHeight(), options);
+        Bitmap bitmap = ImgUtil.decode(context, uri, options, byteCount, pool);
+        if (bitmap == null) {
+            throw new IOException("cannot decode " + uri);
+        }
+        return bitmap;
+    }
+
+
+    /**
+     * 大小来自探测时的fstat、OpenableColumns.SIZE或File.length()，不打开流，
+     * 拿不到大小时按需要压缩处理
+     */
+    private boolean needCompress(int leastCompressSize, ImageInfo info) {
+        if (leastCompressSize > 0 && info.getSize() != ImageInfo.UNKNOWN_SIZE) {
+            return info.getSize() > ((long) leastCompressSize << 10);
+        }
         return true;
     }
 }
@@ -0,0 +1,11 @@
+package com.sl.utakephoto.compress;
+
+/**
+ * {@link CompressImage#compress()}返回的句柄，取消后还没开始的图片直接跳过，
+ * 正在处理的图片在解码、旋转、编码、写入之间检查到取消后停止，之后不再有任何回调
+ */
+public interface CompressJob {
+    void cancel();
+
+    boolean isCancelled();
+}
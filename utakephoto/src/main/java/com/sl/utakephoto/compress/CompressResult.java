@@ -0,0 +1,77 @@
+package com.sl.utakephoto.compress;
+
+import android.net.Uri;
+
+/**
+ * 单张图片的压缩结果，除了输出Uri还带有实际使用的质量、编码次数和输出大小
+ */
+public class CompressResult {
+    /**
+     * 没有重新编码时的质量
+     */
+    public static final int NO_QUALITY = -1;
+    public static final long UNKNOWN_BYTES = -1;
+
+    private final Uri source;
+    private final Uri output;
+    private final int quality;
+    private final int encodePasses;
+    private final long outputBytes;
+    private final boolean passthrough;
+
+    CompressResult(Uri source, Uri output, int quality, int encodePasses, long outputBytes) {
+        this(source, output, quality, encodePasses, outputBytes, false);
+    }
+
+    CompressResult(Uri source, Uri output, int quality, int encodePasses, long outputBytes, boolean passthrough) {
+        this.source = source;
+        this.output = output;
+        this.quality = quality;
+        this.encodePasses = encodePasses;
+        this.outputBytes = outputBytes;
+        this.passthrough = passthrough;
+    }
+
+    public Uri getSource() {
+        return source;
+    }
+
+    public Uri getOutput() {
+        return output;
+    }
+
+    /**
+     * @return 输出编码使用的质量，没有重新编码时为{@link #NO_QUALITY}
+     */
+    public int getQuality() {
+        return quality;
+    }
+
+    /**
+     * @return 编码次数，只有按maxOutputBytes查找质量时才会多于一次
+     */
+    public int getEncodePasses() {
+        return encodePasses;
+    }
+
+    /**
+     * @return 输出的字节数，未知时为{@link #UNKNOWN_BYTES}
+     */
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * @return 没有解码，原图字节原样拷贝到了输出
+     */
+    public boolean isPassthrough() {
+        return passthrough;
+    }
+
+    @Override
+    public String toString() {
+        return "CompressResult{source=" + source + ", output=" + output + ", quality=" + quality
+                + ", encodePasses=" + encodePasses + ", outputBytes=" + outputBytes
+                + ", passthrough=" + passthrough + '}';
+    }
+}
@@ -0,0 +1,33 @@
+package com.sl.utakephoto.compress;
+
+import android.graphics.Bitmap;
+
+import com.sl.utakephoto.probe.ImageFormat;
+
+/**
+ * 解码时Bitmap.Config的选择策略。
+ * QUALITY始终解码为ARGB_8888；SPEED在源图格式不可能带透明通道、输出又是有损格式时解码为RGB_565，
+ * 每像素2字节，解码内存减半，同时解码的图片可以多一倍，代价是渐变处可能出现色带
+ */
+public enum DecodePolicy {
+    QUALITY,
+    SPEED;
+
+    /**
+     * @param source 探测到的源图格式，{@link ImageFormat#UNKNOWN}按可能透明处理
+     * @param output 输出格式，无损格式不使用RGB_565，避免色带被原样保存下来
+     */
+    public Bitmap.Config configFor(ImageFormat source, OutputFormat output) {
+        if (this == SPEED && isOpaque(source) && !output.isLossless()) {
+            return Bitmap.Config.RGB_565;
+        }
+        return Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * 带透明通道的图片请求RGB_565时解码器仍然返回ARGB_8888，只对确定不透明的格式降级，内存预估才准确
+     */
+    private static boolean isOpaque(ImageFormat source) {
+        return source != null && source != ImageFormat.UNKNOWN && !source.supportsAlpha();
+    }
+}
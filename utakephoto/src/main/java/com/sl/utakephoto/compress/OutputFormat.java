@@ -0,0 +1,92 @@
+package com.sl.utakephoto.compress;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import com.sl.utakephoto.probe.ImageFormat;
+
+/**
+ * 压缩输出格式。WEBP_LOSSY/WEBP_LOSSLESS在Android R以上对应同名的CompressFormat，
+ * R以下只有CompressFormat.WEBP：Q上质量100为无损，更低的版本只能用质量100的有损WebP代替无损
+ */
+public enum OutputFormat {
+    JPEG(ImageFormat.JPEG),
+    WEBP_LOSSY(ImageFormat.WEBP_LOSSY),
+    WEBP_LOSSLESS(ImageFormat.WEBP_LOSSLESS),
+    PNG(ImageFormat.PNG);
+
+    /**
+     * Build.VERSION_CODES.R，compileSdk 29里还没有
+     */
+    private static final int VERSION_R = 30;
+
+    private final ImageFormat imageFormat;
+
+    OutputFormat(ImageFormat imageFormat) {
+        this.imageFormat = imageFormat;
+    }
+
+    /**
+     * @return 输出文件的格式，用于后缀和mime type
+     */
+    public ImageFormat getImageFormat() {
+        return imageFormat;
+    }
+
+    public boolean supportsAlpha() {
+        return this != JPEG;
+    }
+
+    /**
+     * 无损格式的quality不影响画质，不需要按maxOutputBytes查找质量。
+     * Q以下WEBP_LOSSLESS实际是质量100的有损WebP，不算无损
+     */
+    public boolean isLossless() {
+        return this == PNG || (this == WEBP_LOSSLESS && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q);
+    }
+
+    @SuppressWarnings("deprecation")
+    public Bitmap.CompressFormat toCompressFormat() {
+        switch (this) {
+            case WEBP_LOSSY:
+                if (Build.VERSION.SDK_INT >= VERSION_R) {
+                    return Bitmap.CompressFormat.valueOf("WEBP_LOSSY");
+                }
+                return Bitmap.CompressFormat.WEBP;
+            case WEBP_LOSSLESS:
+                if (Build.VERSION.SDK_INT >= VERSION_R) {
+                    return Bitmap.CompressFormat.valueOf("WEBP_LOSSLESS");
+                }
+                return Bitmap.CompressFormat.WEBP;
+            case PNG:
+                return Bitmap.CompressFormat.PNG;
+            default:
+                return Bitmap.CompressFormat.JPEG;
+        }
+    }
+
+    /**
+     * R以下的WEBP按质量区分有损和无损，WEBP_LOSSLESS固定用100
+     */
+    int adjustQuality(int quality) {
+        if (this == WEBP_LOSSLESS && Build.VERSION.SDK_INT < VERSION_R) {
+            return 100;
+        }
+        if (this == WEBP_LOSSY && Build.VERSION.SDK_INT < VERSION_R) {
+            //Q上WEBP质量100会输出无损
+            return Math.min(quality, 99);
+        }
+        return quality;
+    }
+
+    /**
+     * 按maxOutputBytes查找质量时使用的quality：Q以下的WEBP_LOSSLESS是有损WebP，按查找的质量编码，
+     * 其余同{@link #adjustQuality}
+     */
+    int searchQuality(int quality) {
+        if (this == WEBP_LOSSLESS && Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return quality;
+        }
+        return adjustQuality(quality);
+    }
+}
@@ -0,0 +1,137 @@
+package com.sl.utakephoto.compress;
+
+import android.graphics.Bitmap;
+
+import com.sl.utakephoto.pool.LruArrayPool;
+import com.sl.utakephoto.pool.PooledByteArrayOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+/**
+ * 按目标文件大小编码：对同一张解码后的Bitmap二分查找质量，找出不超过maxBytes的最高质量。
+ * 编码次数有上限，两块缓冲区来回复用，不会每次编码都重新分配；缓冲区从{@link LruArrayPool}取，
+ * {@link #release()}后给下一张图片复用
+ */
+final class TargetSizeEncoder {
+    static final int MIN_QUALITY = 10;
+    static final int MAX_QUALITY = 95;
+    /**
+     * 10~95二分7次可以精确到1
+     */
+    static final int MAX_SEARCH_PASSES = 7;
+    /**
+     * 一次查找最多的编码次数：二分全部超过上限并且没有试过MIN_QUALITY时，再用MIN_QUALITY编码一次
+     */
+    static final int MAX_ENCODE_PASSES = MAX_SEARCH_PASSES + 1;
+
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 只在{@link #encode}时从池里取，{@link #encodeTo}不需要
+     */
+    private PooledByteArrayOutputStream current;
+    private PooledByteArrayOutputStream best;
+    private int quality;
+    private int passes;
+
+    /**
+     * @param quality  没有大小限制时使用的质量，也是查找的起点
+     * @param maxBytes 大小上限，小于等于0表示不限制
+     * @return 编码结果，下次调用前有效
+     */
+    ByteArrayOutputStream encode(Bitmap bitmap, OutputFormat format, int quality, long maxBytes) {
+        passes = 0;
+        if (current == null) {
+            current = new PooledByteArrayOutputStream(LruArrayPool.getInstance(), INITIAL_BUFFER_SIZE);
+            best = new PooledByteArrayOutputStream(LruArrayPool.getInstance(), INITIAL_BUFFER_SIZE);
+        }
+        if (!needsSearch(format, maxBytes)) {
+            current.reset();
+            encodeTo(bitmap, format, quality, current);
+            return current;
+        }
+
+        int low = MIN_QUALITY;
+        int high = MAX_QUALITY;
+        int q = Math.max(low, Math.min(high, quality));
+        int bestQuality = -1;
+        int lowestTried = Integer.MAX_VALUE;
+        while (low <= high && passes < MAX_SEARCH_PASSES) {
+            encodeOnce(bitmap, format, q, current);
+            lowestTried = Math.min(lowestTried, q);
+            if (current.size() <= maxBytes) {
+                bestQuality = q;
+                swap();
+                low = q + 1;
+            } else {
+                high = q - 1;
+            }
+            q = (low + high) >>> 1;
+        }
+        if (bestQuality == -1) {
+            if (lowestTried > MIN_QUALITY) {
+                encodeOnce(bitmap, format, MIN_QUALITY, current);
+            }
+            //最低质量也超过上限，仍然返回它，只有缩小分辨率才能更小
+            this.quality = MIN_QUALITY;
+            return current;
+        }
+        this.quality = bestQuality;
+        return best;
+    }
+
+    /**
+     * @return 按指定质量编码一次就够时返回false，这时可以用{@link #encodeTo}直接写到目标
+     */
+    static boolean needsSearch(OutputFormat format, long maxBytes) {
+        //无损格式和质量无关，不需要查找。Q以下的WEBP_LOSSLESS实际是有损WebP，和其他有损格式一样查找
+        return maxBytes > 0 && !format.isLossless();
+    }
+
+    /**
+     * 不查找质量，编码一次直接写到out
+     */
+    void encodeTo(Bitmap bitmap, OutputFormat format, int quality, OutputStream out) {
+        passes = 0;
+        this.quality = format.adjustQuality(quality);
+        bitmap.compress(format.toCompressFormat(), this.quality, out);
+        passes++;
+    }
+
+    /**
+     * @return 上次{@link #encode}或{@link #encodeTo}结果的质量
+     */
+    int getQuality() {
+        return quality;
+    }
+
+    /**
+     * @return 上次{@link #encode}或{@link #encodeTo}的编码次数
+     */
+    int getPasses() {
+        return passes;
+    }
+
+    private void encodeOnce(Bitmap bitmap, OutputFormat format, int quality, ByteArrayOutputStream out) {
+        out.reset();
+        bitmap.compress(format.toCompressFormat(), format.searchQuality(quality), out);
+        passes++;
+    }
+
+    /**
+     * 两块缓冲区都还给池，之后{@link #encode}的结果不能再用
+     */
+    void release() {
+        if (current != null) {
+            current.release();
+            best.release();
+        }
+    }
+
+    private void swap() {
+        PooledByteArrayOutputStream tmp = best;
+        best = current;
+        current = tmp;
+    }
+}
@@ -0,0 +1,222 @@
+package com.sl.utakephoto.compress;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.sl.utakephoto.pool.LruBitmapPool;
+import com.sl.utakephoto.probe.ImageFormat;
+import com.sl.utakephoto.probe.ImageInfo;
+import com.sl.utakephoto.utils.ImgUtil;
+import com.sl.utakephoto.utils.MemoryBudget;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CancellationException;
+
+import static com.sl.utakephoto.utils.TConstant.TAG;
+
+/**
+ * 超大图片和全景图的分块缩小：用BitmapRegionDecoder按横条解码，每条按目标尺寸选inSampleSize，
+ * 缩放并旋转后直接画到最终尺寸的Bitmap上。峰值内存是一个横条加上输出，和原图大小无关
+ */
+final class TiledDecoder {
+    /**
+     * 原图超过这么多像素时分块解码
+     */
+    static final long THRESHOLD_PIXELS = 32L * 1000 * 1000;
+    /**
+     * 每个横条解码后的大小上限
+     */
+    static final int STRIP_BYTES = 4 * 1024 * 1024;
+    /**
+     * JPEG按8或16行的MCU解码，横条高度对齐到16行，不重复解码同一行MCU
+     */
+    private static final int ROW_ALIGN = 16;
+
+    private TiledDecoder() {
+    }
+
+    /**
+     * @return 图片是否大到需要分块解码，并且格式是{@link BitmapRegionDecoder}支持的
+     */
+    static boolean shouldTile(ImageInfo info) {
+        if (!info.hasBounds() || (long) info.getWidth() * info.getHeight() <= THRESHOLD_PIXELS) {
+            return false;
+        }
+        ImageFormat format = info.getFormat();
+        return format == ImageFormat.JPEG || format == ImageFormat.PNG || format.isWebp()
+                || (format == ImageFormat.HEIF && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P);
+    }
+
+    /**
+     * Bitmap内存峰值：输出加上一个解码后的横条
+     */
+    static long cost(ImageInfo info, int width, int height, Bitmap.Config config) {
+        int sampleSize = ImgUtil.computeSampleSize(info.getWidth(), info.getHeight(), width, height);
+        long strip = Math.min(STRIP_BYTES, MemoryBudget.estimate(info.getWidth(), info.getHeight(), options(sampleSize, config)));
+        return (long) width * height * MemoryBudget.bytesPerPixel(config) + strip;
+    }
+
+    /**
+     * 按横条解码，缩放到width x height(存储方向)并顺时针旋转angle
+     *
+     * @param job 每个横条之间检查是否取消，可以为null
+     * @return 不能创建BitmapRegionDecoder时返回null，调用方整张解码
+     */
+    static Bitmap decode(Context context, Uri uri, int width, int height, int angle, Bitmap.Config config,
+                         LruBitmapPool pool, CompressJob job) throws IOException {
+        BitmapRegionDecoder decoder = newDecoder(context, uri);
+        if (decoder == null) {
+            return null;
+        }
+        Bitmap output = null;
+        try {
+            int srcWidth = decoder.getWidth();
+            int srcHeight = decoder.getHeight();
+            int sampleSize = ImgUtil.computeSampleSize(srcWidth, srcHeight, width, height);
+            int sampledWidth = (srcWidth + sampleSize - 1) / sampleSize;
+            int rows = Math.max(1, STRIP_BYTES / (sampledWidth * MemoryBudget.bytesPerPixel(config))) * sampleSize;
+            if (rows >= ROW_ALIGN * sampleSize) {
+                rows -= rows % (ROW_ALIGN * sampleSize);
+            }
+
+            int degrees = ((angle % 360) + 360) % 360;
+            boolean swap = degrees % 180 != 0;
+            output = pool.get(swap ? height : width, swap ? width : height, config);
+            Canvas canvas = new Canvas(output);
+            canvas.concat(rotation(degrees, width, height));
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            float scaleY = (float) height / srcHeight;
+            BitmapFactory.Options options = options(sampleSize, config);
+            Rect region = new Rect();
+            Rect src = new Rect();
+            RectF dst = new RectF();
+            for (int top = 0; top < srcHeight; top += rows) {
+                if (job != null && job.isCancelled()) {
+                    throw new CancellationException();
+                }
+                int bottom = Math.min(srcHeight, top + rows);
+                //上下各多解码一行采样后的像素，缩放过滤时横条边缘有相邻的像素，不会出现接缝
+                int decodeTop = Math.max(0, top - sampleSize);
+                int decodeBottom = Math.min(srcHeight, bottom + sampleSize);
+                region.set(0, decodeTop, srcWidth, decodeBottom);
+                Bitmap strip = decodeRegion(decoder, region, options, pool);
+                if (strip == null) {
+                    throw new IOException("cannot decode rows " + top + "-" + bottom + " of " + uri);
+                }
+                //复用的inBitmap不会被缩小，解码结果只占左上角，src按区域采样后的尺寸取。
+                //解码器对不能整除的边向上或向下取整因格式而异，按向下取整的部分画，两种情况都有数据
+                int regionWidth = Math.min(strip.getWidth(), Math.max(1, region.width() / sampleSize));
+                int regionHeight = Math.min(strip.getHeight(), Math.max(1, region.height() / sampleSize));
+                src.set(0, Math.min(regionHeight - 1, (top - decodeTop) / sampleSize), regionWidth,
+                        Math.min(regionHeight, (bottom - decodeTop + sampleSize - 1) / sampleSize));
+                dst.set(0, top * scaleY, width, bottom * scaleY);
+                canvas.drawBitmap(strip, src, dst, paint);
+                pool.put(strip);
+            }
+            Bitmap result = output;
+            output = null;
+            return result;
+        } finally {
+            decoder.recycle();
+            pool.put(output);
+        }
+    }
+
+    /**
+     * 和{@link ImgUtil#transform}相同：旋转后平移回第一象限
+     */
+    private static Matrix rotation(int degrees, int width, int height) {
+        Matrix matrix = new Matrix();
+        matrix.setRotate(degrees);
+        if (degrees == 90) {
+            matrix.postTranslate(height, 0);
+        } else if (degrees == 180) {
+            matrix.postTranslate(width, height);
+        } else if (degrees == 270) {
+            matrix.postTranslate(0, width);
+        }
+        return matrix;
+    }
+
+    private static BitmapFactory.Options options(int sampleSize, Bitmap.Config config) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = config;
+        return options;
+    }
+
+    /**
+     * 通过inBitmap复用上一个横条，解码器拒绝时不带inBitmap重试。
+     * BitmapRegionDecoder不会改变inBitmap的宽高，所以取一个按采样后尺寸(向上取整)reconfigure过的Bitmap，
+     * 而不是只按字节数合适的任意形状
+     */
+    private static Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect region, BitmapFactory.Options options,
+                                       LruBitmapPool pool) {
+        int sampleSize = Math.max(1, options.inSampleSize);
+        options.inMutable = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            options.inBitmap = pool.get((region.width() + sampleSize - 1) / sampleSize,
+                    (region.height() + sampleSize - 1) / sampleSize, options.inPreferredConfig);
+        }
+        try {
+            if (options.inBitmap != null) {
+                try {
+                    return decoder.decodeRegion(region, options);
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "cannot decode region into a pooled bitmap, retrying", e);
+                    pool.put(options.inBitmap);
+                    options.inBitmap = null;
+                }
+            }
+            return decoder.decodeRegion(region, options);
+        } finally {
+            options.inBitmap = null;
+        }
+    }
+
+    /**
+     * 优先使用文件描述符，用流时解码器会把整个文件拷贝到内存
+     */
+    private static BitmapRegionDecoder newDecoder(Context context, Uri uri) throws IOException {
+        try {
+            ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (pfd != null) {
+                try {
+                    return BitmapRegionDecoder.newInstance(pfd.getFileDescriptor(), false);
+                } finally {
+                    pfd.close();
+                }
+            }
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, "no file descriptor for " + uri + ", decoding regions from a stream");
+        } catch (IOException e) {
+            Log.w(TAG, "cannot open region decoder for " + uri, e);
+            return null;
+        }
+        InputStream inputStream = context.getContentResolver().openInputStream(uri);
+        if (inputStream == null) {
+            throw new FileNotFoundException("cannot open " + uri);
+        }
+        try {
+            return BitmapRegionDecoder.newInstance(inputStream, false);
+        } catch (IOException e) {
+            Log.w(TAG, "cannot open region decoder for " + uri, e);
+            return null;
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -41,10 +41,21 @@ import android.view.View.OnClickListener;
 import android.view.WindowManager;
 import android.widget.Toast;
 
+import com.sl.utakephoto.compress.DecodePolicy;
+import com.sl.utakephoto.compress.OutputFormat;
+import com.sl.utakephoto.jpeg.JpegTransform;
+import com.sl.utakephoto.pool.LruArrayPool;
+import com.sl.utakephoto.pool.LruBitmapPool;
+import com.sl.utakephoto.pool.PooledBufferedOutputStream;
+import com.sl.utakephoto.pool.PooledByteArrayOutputStream;
+import com.sl.utakephoto.probe.ImageFormat;
+import com.sl.utakephoto.probe.ImageInfo;
+import com.sl.utakephoto.probe.ImageInfoCache;
+import com.sl.utakephoto.probe.ImageProbe;
 import com.sl.utakephoto.utils.ImgUtil;
+import com.sl.utakephoto.utils.MemoryBudget;
 import com.sl.utakephoto_lib.R;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -60,6 +71,7 @@ public class CropActivity extends Activity {
     public static final String CROP_ACTION = "com.android.camera.action.CROP";
     private CropExtras mCropExtras = null;
     private LoadBitmapTask mLoadBitmapTask = null;
+    private BitmapIOTask mBitmapIOTask = null;
 
     private int mOutputX = 0;
     private int mOutputY = 0;
@@ -67,6 +79,7 @@ public class CropActivity extends Activity {
     private RectF mOriginalBounds = null;
     private int mOriginalRotation = 0;
     private Uri mSourceUri = null;
+    private ImageFormat mSourceFormat = ImageFormat.UNKNOWN;
     private CropView mCropView = null;
     private View mSaveButton = null;
     private View mCancleButton;
@@ -75,6 +88,7 @@ public class CropActivity extends Activity {
     private static final int SELECT_PICTURE = 1; // request code for picker
 
     private static final int DEFAULT_COMPRESS_QUALITY = 90;
+    private static final int BUFFER_SIZE = 16 * 1024;
     /**
      * The maximum bitmap size we allow to be returned through the intent.
      * Intents have a maximum of 1MB in total size. However, the Bitmap seems to
@@ -144,6 +158,12 @@ public class CropActivity extends Activity {
         if (mLoadBitmapTask != null) {
             mLoadBitmapTask.cancel(false);
         }
+        if (mOriginalBitmap != null && (mBitmapIOTask == null
+                || mBitmapIOTask.getStatus() == AsyncTask.Status.FINISHED)) {
+            // The preview is no longer drawn, hand it back for the next decode
+            LruBitmapPool.getInstance(this).put(mOriginalBitmap);
+            mOriginalBitmap = null;
+        }
         super.onDestroy();
     }
 
@@ -260,6 +280,7 @@ public class CropActivity extends Activity {
         Context mContext;
         Rect mOriginalBounds;
         int mOrientation;
+        ImageFormat mFormat = ImageFormat.UNKNOWN;
 
         public LoadBitmapTask() {
             mBitmapSize = getScreenImageSize();
@@ -271,14 +292,37 @@ public class CropActivity extends Activity {
         @Override
         protected Bitmap doInBackground(Uri... params) {
             Uri uri = params[0];
-            Bitmap bmap = loadConstrainedBitmap(uri, mContext, mBitmapSize,
-                    mOriginalBounds, false);
-            mOrientation = ImgUtil.getMetadataRotation(mContext, uri);
-            return bmap;
+            ImageInfo info;
+            try {
+                info = ImageInfoCache.getInstance().get(mContext, uri);
+            } catch (IOException e) {
+                Log.w(LOGTAG, "cannot probe file: " + uri, e);
+                return null;
+            }
+            mOrientation = info.isJpeg() ? info.getOrientation() : 0;
+            mFormat = info.getFormat();
+            Bitmap.Config config = decodeConfig(mFormat);
+            // The preview is downsampled until its longer side fits mBitmapSize
+            long pixels = Math.min((long) info.getWidth() * info.getHeight(), (long) mBitmapSize * mBitmapSize);
+            long cost = pixels * MemoryBudget.bytesPerPixel(config);
+            MemoryBudget budget = MemoryBudget.getInstance(mContext);
+            try {
+                budget.acquire(cost);
+            } catch (IOException e) {
+                Log.w(LOGTAG, "interrupted while waiting for decode memory", e);
+                return null;
+            }
+            try {
+                return loadConstrainedBitmap(uri, mContext, info, config, mBitmapSize,
+                        mOriginalBounds, false);
+            } finally {
+                budget.release(cost);
+            }
         }
 
         @Override
         protected void onPostExecute(Bitmap result) {
+            mSourceFormat = mFormat;
             doneLoadBitmap(result, new RectF(mOriginalBounds), mOrientation);
         }
     }
@@ -292,6 +336,26 @@ public class CropActivity extends Activity {
         }
         // Get width and height of stored bitmap
         Rect storedBounds = loadBitmapBounds(context, uri);
+        return loadConstrainedBitmap(uri, context, storedBounds, null, maxSideLength, originalBounds, useMin);
+    }
+
+    /**
+     * Same as {@link #loadConstrainedBitmap(Uri, Context, int, Rect, boolean)} but reuses
+     * bounds that were already probed instead of opening the Uri again.
+     *
+     * @param config preferred config of the decoded bitmap, null for the default ARGB_8888
+     */
+    public static Bitmap loadConstrainedBitmap(Uri uri, Context context, ImageInfo info, Bitmap.Config config,
+                                               int maxSideLength, Rect originalBounds, boolean useMin) {
+        if (maxSideLength <= 0 || uri == null || context == null || info == null) {
+            throw new IllegalArgumentException("bad argument to getScaledBitmap");
+        }
+        return loadConstrainedBitmap(uri, context, new Rect(0, 0, info.getWidth(), info.getHeight()),
+                config, maxSideLength, originalBounds, useMin);
+    }
+
+    private static Bitmap loadConstrainedBitmap(Uri uri, Context context, Rect storedBounds, Bitmap.Config config,
+                                                int maxSideLength, Rect originalBounds, boolean useMin) {
         if (originalBounds != null) {
             originalBounds.set(storedBounds);
         }
@@ -321,17 +385,41 @@ public class CropActivity extends Activity {
                 0 >= (int) (Math.min(w, h) / sampleSize)) {
             return null;
         }
-        return loadDownsampledBitmap(context, uri, sampleSize);
+        // The stored bounds are known, so the decode can go into a pooled bitmap
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        if (config != null) {
+            options.inPreferredConfig = config;
+        }
+        try {
+            return ImgUtil.decode(context, uri, options, MemoryBudget.estimate(w, h, options),
+                    LruBitmapPool.getInstance(context));
+        } catch (IOException e) {
+            Log.e(LOGTAG, "cannot decode " + uri, e);
+            return null;
+        }
     }
 
     /**
      * Returns the bounds of the bitmap stored at a given Url.
      */
     public static Rect loadBitmapBounds(Context context, Uri uri) {
-        BitmapFactory.Options o = new BitmapFactory.Options();
-        o.inJustDecodeBounds = true;
-        loadBitmap(context, uri, o);
-        return new Rect(0, 0, o.outWidth, o.outHeight);
+        if (uri == null || context == null) {
+            throw new IllegalArgumentException("bad argument to loadBitmapBounds");
+        }
+        InputStream is = null;
+        try {
+            is = context.getContentResolver().openInputStream(uri);
+            if (is != null) {
+                ImageInfo info = ImageProbe.probe(is);
+                return new Rect(0, 0, info.getWidth(), info.getHeight());
+            }
+        } catch (IOException e) {
+            Log.e(LOGTAG, "cannot read bounds for " + uri, e);
+        } finally {
+            closeSilently(is);
+        }
+        return new Rect();
     }
 
     /**
@@ -420,9 +508,9 @@ public class CropActivity extends Activity {
 
         final View loading = findViewById(R.id.loading);
         loading.setVisibility(View.VISIBLE);
-        BitmapIOTask ioTask = new BitmapIOTask(sourceUri, destUri, format, flags, cropBounds,
+        mBitmapIOTask = new BitmapIOTask(sourceUri, destUri, format, flags, cropBounds,
                 photoBounds, currentBitmapBounds, rotation, mOutputX, mOutputY);
-        ioTask.execute(currentBitmap);
+        mBitmapIOTask.execute(currentBitmap);
     }
 
     private void doneBitmapIO(boolean success, Intent intent) {
@@ -450,6 +538,8 @@ public class CropActivity extends Activity {
         RectF mOrig = null;
         Intent mResultIntent = null;
         int mRotation = 0;
+        boolean mLossless = false;
+        Bitmap.Config mConfig = Bitmap.Config.ARGB_8888;
 
         // Helper to setup input stream
         private void regenerateInputStream() {
@@ -483,6 +573,8 @@ public class CropActivity extends Activity {
             mRotation = 90 * (int) (mRotation / 90);  // now mRotation is a multiple of 90
             mOutputX = outputX;
             mOutputY = outputY;
+            mLossless = mCropExtras != null && mCropExtras.getLossless();
+            mConfig = decodeConfig(mSourceFormat);
 
             if ((flags & DO_EXTRA_OUTPUT) != 0) {
                 if (mOutUri == null) {
@@ -561,131 +653,234 @@ public class CropActivity extends Activity {
                     return false;
                 }
 
-                // Attempt to open a region decoder
-                BitmapRegionDecoder decoder = null;
-                try {
-                    decoder = BitmapRegionDecoder.newInstance(mInStream, true);
-                } catch (IOException e) {
-                    Log.w(LOGTAG, "cannot open region decoder for file: " + mInUri.toString(), e);
+                // No scaling and only a file to write: cut the JPEG in the compressed domain
+                if (mLossless && mFlags == DO_EXTRA_OUTPUT && mOutStream != null
+                        && (mOutputX <= 0 || mOutputY <= 0)
+                        && "jpg".equals(getFileExtension(mOutputFormat))) {
+                    // The written area is moved out to the MCU grid, with a fixed aspect it has to match exactly
+                    boolean exact = mCropExtras.getAspectX() > 0 && mCropExtras.getAspectY() > 0;
+                    Rect written = new Rect();
+                    PooledByteArrayOutputStream encoded = cropLossless(roundedTrueCrop, exact, written);
+                    if (encoded != null) {
+                        // Nothing has reached mOutStream before this point, the decoding path is the fallback
+                        try {
+                            encoded.writeTo(mOutStream);
+                            mOutStream.flush();
+                        } catch (IOException e) {
+                            Log.w(LOGTAG, "cannot write file: " + mOutUri.toString(), e);
+                            return false;
+                        } finally {
+                            encoded.release();
+                        }
+                        RectF writtenBounds = new RectF(written);
+                        Matrix m = new Matrix();
+                        m.setRotate(mRotation);
+                        m.mapRect(writtenBounds);
+                        Rect rounded = new Rect();
+                        writtenBounds.roundOut(rounded);
+                        mResultIntent.putExtra(CropExtras.KEY_CROPPED_RECT, rounded);
+                        ImageInfoCache.getInstance().invalidate(mOutUri);
+                        mResultIntent.setData(mOutUri);
+                        return true;
+                    }
                 }
 
-                Bitmap crop = null;
-                if (decoder != null) {
-                    // Do region decoding to get crop bitmap
-                    BitmapFactory.Options options = new BitmapFactory.Options();
-                    options.inMutable = true;
-                    crop = decoder.decodeRegion(roundedTrueCrop, options);
-                    decoder.recycle();
+                // Wait until the decoded crop and its rotated/scaled copy fit in the decode budget
+                MemoryBudget budget = MemoryBudget.getInstance(getApplicationContext());
+                long cost = cropCost(roundedTrueCrop);
+                try {
+                    budget.acquire(cost);
+                } catch (IOException e) {
+                    Log.w(LOGTAG, "interrupted while waiting for decode memory", e);
+                    return false;
                 }
+                try {
+                    // Attempt to open a region decoder
+                    BitmapRegionDecoder decoder = null;
+                    try {
+                        decoder = BitmapRegionDecoder.newInstance(mInStream, true);
+                    } catch (IOException e) {
+                        Log.w(LOGTAG, "cannot open region decoder for file: " + mInUri.toString(), e);
+                    }
 
-                if (crop == null) {
-                    // BitmapRegionDecoder has failed, try to crop in-memory
-                    regenerateInputStream();
-                    Bitmap fullSize = null;
-                    if (mInStream != null) {
-                        fullSize = BitmapFactory.decodeStream(mInStream);
+                    LruBitmapPool pool = LruBitmapPool.getInstance(getApplicationContext());
+                    Bitmap crop = null;
+                    if (decoder != null) {
+                        // Do region decoding to get crop bitmap
+                        BitmapFactory.Options options = new BitmapFactory.Options();
+                        options.inMutable = true;
+                        options.inPreferredConfig = mConfig;
+                        crop = decoder.decodeRegion(roundedTrueCrop, options);
+                        decoder.recycle();
                     }
-                    if (fullSize != null) {
-                        crop = Bitmap.createBitmap(fullSize, roundedTrueCrop.left,
-                                roundedTrueCrop.top, roundedTrueCrop.width(),
-                                roundedTrueCrop.height());
+
+                    if (crop == null) {
+                        // BitmapRegionDecoder has failed, try to crop in-memory
+                        regenerateInputStream();
+                        Bitmap fullSize = null;
+                        if (mInStream != null) {
+                            BitmapFactory.Options options = new BitmapFactory.Options();
+                            options.inPreferredConfig = mConfig;
+                            fullSize = BitmapFactory.decodeStream(mInStream, null, options);
+                        }
+                        if (fullSize != null) {
+                            crop = Bitmap.createBitmap(fullSize, roundedTrueCrop.left,
+                                    roundedTrueCrop.top, roundedTrueCrop.width(),
+                                    roundedTrueCrop.height());
+                            if (crop != fullSize) {
+                                fullSize.recycle();
+                            }
+                        }
                     }
-                }
 
-                if (crop == null) {
-                    Log.w(LOGTAG, "cannot decode file: " + mInUri.toString());
-                    failure = true;
-                    return false;
-                }
-                if (mOutputX > 0 && mOutputY > 0) {
-                    Matrix m = new Matrix();
-                    RectF cropRect = new RectF(0, 0, crop.getWidth(), crop.getHeight());
-                    if (mRotation > 0) {
-                        m.setRotate(mRotation);
-                        m.mapRect(cropRect);
+                    if (crop == null) {
+                        Log.w(LOGTAG, "cannot decode file: " + mInUri.toString());
+                        failure = true;
+                        return false;
                     }
-                    RectF returnRect = new RectF(0, 0, mOutputX, mOutputY);
-                    m.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
-                    m.preRotate(mRotation);
-                    Bitmap tmp = Bitmap.createBitmap((int) returnRect.width(),
-                            (int) returnRect.height(), Bitmap.Config.ARGB_8888);
-                    if (tmp != null) {
+                    if (mOutputX > 0 && mOutputY > 0) {
+                        Matrix m = new Matrix();
+                        RectF cropRect = new RectF(0, 0, crop.getWidth(), crop.getHeight());
+                        if (mRotation > 0) {
+                            m.setRotate(mRotation);
+                            m.mapRect(cropRect);
+                        }
+                        RectF returnRect = new RectF(0, 0, mOutputX, mOutputY);
+                        m.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
+                        m.preRotate(mRotation);
+                        Bitmap tmp = pool.get((int) returnRect.width(), (int) returnRect.height(),
+                                crop.getConfig() != null ? crop.getConfig() : Bitmap.Config.ARGB_8888);
                         Canvas c = new Canvas(tmp);
-                        c.drawBitmap(crop, m, new Paint());
+                        c.drawBitmap(crop, m, new Paint(Paint.FILTER_BITMAP_FLAG));
+                        pool.put(crop);
                         crop = tmp;
+                    } else if (mRotation > 0) {
+                        crop = ImgUtil.rotatingImage(crop, mRotation, pool);
                     }
-                } else if (mRotation > 0) {
-                    Matrix m = new Matrix();
-                    m.setRotate(mRotation);
-                    Bitmap tmp = Bitmap.createBitmap(crop, 0, 0, crop.getWidth(),
-                            crop.getHeight(), m, true);
-                    if (tmp != null) {
-                        crop = tmp;
-                    }
-                }
-                // Get output compression format
-                CompressFormat cf =
-                        convertExtensionToCompressFormat(getFileExtension(mOutputFormat));
-
-                // If we only need to output to a URI, compress straight to file
-                if (mFlags == DO_EXTRA_OUTPUT) {
-                    if (mOutStream == null
-                            || !crop.compress(cf, DEFAULT_COMPRESS_QUALITY, mOutStream)) {
-                        Log.w(LOGTAG, "failed to compress bitmap to file: " + mOutUri.toString());
-                        failure = true;
-                    } else {
-                        mResultIntent.setData(mOutUri);
-                    }
-                } else {
-                    // Compress to byte array
-                    ByteArrayOutputStream tmpOut = new ByteArrayOutputStream(2048);
-                    if (crop.compress(cf, DEFAULT_COMPRESS_QUALITY, tmpOut)) {
-
-                        // If we need to output to a Uri, write compressed
-                        // bitmap out
-                        if ((mFlags & DO_EXTRA_OUTPUT) != 0) {
-                            if (mOutStream == null) {
-                                Log.w(LOGTAG,
-                                        "failed to compress bitmap to file: " + mOutUri.toString());
-                                failure = true;
-                            } else {
-                                try {
-                                    mOutStream.write(tmpOut.toByteArray());
-                                    mResultIntent.setData(mOutUri);
-                                } catch (IOException e) {
-                                    Log.w(LOGTAG,
-                                            "failed to compress bitmap to file: "
-                                                    + mOutUri.toString(), e);
-                                    failure = true;
-                                }
-                            }
+                    // Get output compression format
+                    CompressFormat cf =
+                            convertExtensionToCompressFormat(getFileExtension(mOutputFormat));
+
+                    // Compress straight into the buffered output stream, no intermediate byte array
+                    if ((mFlags & DO_EXTRA_OUTPUT) != 0) {
+                        if (mOutStream == null || !compressToOutput(crop, cf)) {
+                            Log.w(LOGTAG, "failed to compress bitmap to file: " + mOutUri.toString());
+                            failure = true;
+                        } else {
+                            ImageInfoCache.getInstance().invalidate(mOutUri);
+                            mResultIntent.setData(mOutUri);
                         }
+                    }
 
-                        // If we need to set to the wallpaper, set it
-                        if ((mFlags & DO_SET_WALLPAPER) != 0 && mWPManager != null) {
-                            if (mWPManager == null) {
-                                Log.w(LOGTAG, "no wallpaper manager");
-                                failure = true;
-                            } else {
-//                                try {
-//                                    mWPManager.setStream(new ByteArrayInputStream(tmpOut
-//                                            .toByteArray()));
-//                                } catch (IOException e) {
-//                                    Log.w(LOGTAG, "cannot write stream to wallpaper", e);
-//                                    failure = true;
-//                                }
-                                failure = true;
-                            }
+                    // If we need to set to the wallpaper, set it
+                    if ((mFlags & DO_SET_WALLPAPER) != 0) {
+                        if (mWPManager == null) {
+                            Log.w(LOGTAG, "no wallpaper manager");
+                            failure = true;
+                        } else {
+    //                        try {
+    //                            mWPManager.setBitmap(crop);
+    //                        } catch (IOException e) {
+    //                            Log.w(LOGTAG, "cannot write stream to wallpaper", e);
+    //                            failure = true;
+    //                        }
+                            failure = true;
                         }
-                    } else {
-                        Log.w(LOGTAG, "cannot compress bitmap");
-                        failure = true;
                     }
+                    pool.put(crop);
+                } finally {
+                    budget.release(cost);
                 }
             }
             return !failure; // True if any of the operations failed
         }
 
+        private boolean compressToOutput(Bitmap bitmap, CompressFormat cf) {
+            PooledBufferedOutputStream out = new PooledBufferedOutputStream(mOutStream, BUFFER_SIZE);
+            try {
+                if (!bitmap.compress(cf, DEFAULT_COMPRESS_QUALITY, out)) {
+                    return false;
+                }
+                out.flush();
+                return true;
+            } catch (IOException e) {
+                Log.w(LOGTAG, "cannot write file: " + mOutUri.toString(), e);
+                return false;
+            } finally {
+                // mOutStream is closed by the task, only the buffer goes back
+                out.release();
+            }
+        }
+
+        /**
+         * Peak bitmap memory of the decoding path: the cropped region plus the rotated or
+         * scaled copy made from it.
+         */
+        private long cropCost(Rect crop) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = mConfig;
+            long cropped = MemoryBudget.estimate(crop.width(), crop.height(), options);
+            if (mOutputX > 0 && mOutputY > 0) {
+                return cropped + MemoryBudget.estimate(mOutputX, mOutputY, options);
+            }
+            return mRotation > 0 ? cropped * 2 : cropped;
+        }
+
+        /**
+         * Crops and rotates the source JPEG with {@link JpegTransform} without decoding pixels,
+         * into a buffer so a failure half way does not leave partial data in mOutStream.
+         *
+         * @param exact   only succeed if the MCU-aligned area is exactly {@code crop}
+         * @param written receives the area that was actually encoded, in source coordinates
+         * @return the encoded JPEG, release it after use; null if the source is not a JPEG the
+         * transform supports, the area cannot be kept as requested or it does not fit in the decode budget
+         */
+        private PooledByteArrayOutputStream cropLossless(Rect crop, boolean exact, Rect written) {
+            MemoryBudget budget = MemoryBudget.getInstance(getApplicationContext());
+            long cost = JpegTransform.estimateCropMemory(crop.width(), crop.height());
+            if (cost > budget.getBudget()) {
+                return null;
+            }
+            InputStream in = null;
+            PooledByteArrayOutputStream out = null;
+            boolean acquired = false;
+            try {
+                if (ImageProbe.readFormat(getApplicationContext(), mInUri) != ImageFormat.JPEG) {
+                    return null;
+                }
+                in = getContentResolver().openInputStream(mInUri);
+                if (in == null) {
+                    return null;
+                }
+                budget.acquire(cost);
+                acquired = true;
+                out = new PooledByteArrayOutputStream(LruArrayPool.getInstance(), BUFFER_SIZE);
+                int[] rect = new int[4];
+                if (!JpegTransform.crop(in, out, crop.left, crop.top, crop.right, crop.bottom, mRotation,
+                        exact, rect)) {
+                    return null;
+                }
+                written.set(rect[0], rect[1], rect[2], rect[3]);
+                PooledByteArrayOutputStream result = out;
+                out = null;
+                return result;
+            } catch (IOException e) {
+                Log.w(LOGTAG, "cannot crop losslessly: " + mInUri, e);
+                return null;
+            } catch (OutOfMemoryError e) {
+                Log.w(LOGTAG, "not enough memory to crop losslessly: " + mInUri, e);
+                return null;
+            } finally {
+                if (out != null) {
+                    out.release();
+                }
+                if (acquired) {
+                    budget.release(cost);
+                }
+                closeSilently(in);
+            }
+        }
+
         @Override
         protected void onPostExecute(Boolean result) {
             closeSilently(mOutStream);
@@ -760,11 +955,37 @@ public class CropActivity extends Activity {
                     extras.getString(CropExtras.KEY_OUTPUT_FORMAT),
                     extras.getBoolean(CropExtras.KEY_SHOW_WHEN_LOCKED, false),
                     extras.getFloat(CropExtras.KEY_SPOTLIGHT_X),
-                    extras.getFloat(CropExtras.KEY_SPOTLIGHT_Y));
+                    extras.getFloat(CropExtras.KEY_SPOTLIGHT_Y),
+                    extras.getBoolean(CropExtras.KEY_LOSSLESS, false),
+                    decodePolicyOf(extras.getString(CropExtras.KEY_DECODE_POLICY)));
         }
         return null;
     }
 
+    private static DecodePolicy decodePolicyOf(String name) {
+        if (name != null) {
+            try {
+                return DecodePolicy.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                Log.w(LOGTAG, "unknown decode policy: " + name);
+            }
+        }
+        return DecodePolicy.QUALITY;
+    }
+
+    /**
+     * Bitmap config for decoding the source, chosen by the decode policy from the sniffed
+     * source format and the requested output format.
+     */
+    private Bitmap.Config decodeConfig(ImageFormat source) {
+        if (mCropExtras == null) {
+            return Bitmap.Config.ARGB_8888;
+        }
+        OutputFormat output = "png".equals(getFileExtension(mCropExtras.getOutputFormat()))
+                ? OutputFormat.PNG : OutputFormat.JPEG;
+        return mCropExtras.getDecodePolicy().configFor(source, output);
+    }
+
     protected static CompressFormat convertExtensionToCompressFormat(String extension) {
         return extension.equals("png") ? CompressFormat.PNG : CompressFormat.JPEG;
     }
@@ -18,6 +18,8 @@ package com.sl.utakephoto.crop;
 
 import android.net.Uri;
 
+import com.sl.utakephoto.compress.DecodePolicy;
+
 public class CropExtras {
 
     public static final String KEY_CROPPED_RECT = "cropped-rect";
@@ -34,6 +36,8 @@ public class CropExtras {
     public static final String KEY_SPOTLIGHT_Y = "spotlightY";
     public static final String KEY_SHOW_WHEN_LOCKED = "showWhenLocked";
     public static final String KEY_OUTPUT_FORMAT = "outputFormat";
+    public static final String KEY_LOSSLESS = "lossless";
+    public static final String KEY_DECODE_POLICY = "decodePolicy";
 
     private int mOutputX = 0;
     private int mOutputY = 0;
@@ -47,10 +51,27 @@ public class CropExtras {
     private boolean mShowWhenLocked = false;
     private float mSpotlightX = 0;
     private float mSpotlightY = 0;
+    private boolean mLossless = false;
+    private DecodePolicy mDecodePolicy = DecodePolicy.QUALITY;
 
     public CropExtras(int outputX, int outputY, boolean scaleUp, int aspectX, int aspectY,
             boolean setAsWallpaper, boolean returnData, Uri extraOutput, String outputFormat,
             boolean showWhenLocked, float spotlightX, float spotlightY) {
+        this(outputX, outputY, scaleUp, aspectX, aspectY, setAsWallpaper, returnData, extraOutput,
+                outputFormat, showWhenLocked, spotlightX, spotlightY, false);
+    }
+
+    public CropExtras(int outputX, int outputY, boolean scaleUp, int aspectX, int aspectY,
+            boolean setAsWallpaper, boolean returnData, Uri extraOutput, String outputFormat,
+            boolean showWhenLocked, float spotlightX, float spotlightY, boolean lossless) {
+        this(outputX, outputY, scaleUp, aspectX, aspectY, setAsWallpaper, returnData, extraOutput,
+                outputFormat, showWhenLocked, spotlightX, spotlightY, lossless, DecodePolicy.QUALITY);
+    }
+
+    public CropExtras(int outputX, int outputY, boolean scaleUp, int aspectX, int aspectY,
+            boolean setAsWallpaper, boolean returnData, Uri extraOutput, String outputFormat,
+            boolean showWhenLocked, float spotlightX, float spotlightY, boolean lossless,
+            DecodePolicy decodePolicy) {
         mOutputX = outputX;
         mOutputY = outputY;
         mScaleUp = scaleUp;
@@ -63,12 +84,14 @@ public class CropExtras {
         mShowWhenLocked = showWhenLocked;
         mSpotlightX = spotlightX;
         mSpotlightY = spotlightY;
+        mLossless = lossless;
+        mDecodePolicy = decodePolicy == null ? DecodePolicy.QUALITY : decodePolicy;
     }
 
     public CropExtras(CropExtras c) {
         this(c.mOutputX, c.mOutputY, c.mScaleUp, c.mAspectX, c.mAspectY, c.mSetAsWallpaper,
                 c.mReturnData, c.mExtraOutput, c.mOutputFormat, c.mShowWhenLocked,
-                c.mSpotlightX, c.mSpotlightY);
+                c.mSpotlightX, c.mSpotlightY, c.mLossless, c.mDecodePolicy);
     }
 
     public int getOutputX() {
@@ -118,4 +141,12 @@ public class CropExtras {
     public float getSpotlightY() {
         return mSpotlightY;
     }
+
+    public boolean getLossless() {
+        return mLossless;
+    }
+
+    public DecodePolicy getDecodePolicy() {
+        return mDecodePolicy;
+    }
 }
@@ -1,5 +1,7 @@
 package com.sl.utakephoto.crop;
 
+import com.sl.utakephoto.compress.DecodePolicy;
+
 import java.io.Serializable;
 
 /**
@@ -11,6 +13,14 @@ public class CropOptions implements Serializable {
     private int aspectY;
     private int outputX;
     private int outputY;
+    /**
+     * 不设置outputX/outputY且源图是JPEG时，在压缩域按MCU网格裁剪，不解码不重新编码
+     */
+    private boolean lossless;
+    /**
+     * 自带裁剪界面解码时Bitmap.Config的策略
+     */
+    private DecodePolicy decodePolicy = DecodePolicy.QUALITY;
 
     private CropOptions() {
     }
@@ -47,6 +57,22 @@ public class CropOptions implements Serializable {
         this.outputY = outputY;
     }
 
+    public boolean isLossless() {
+        return lossless;
+    }
+
+    public void setLossless(boolean lossless) {
+        this.lossless = lossless;
+    }
+
+    public DecodePolicy getDecodePolicy() {
+        return decodePolicy;
+    }
+
+    public void setDecodePolicy(DecodePolicy decodePolicy) {
+        this.decodePolicy = decodePolicy == null ? DecodePolicy.QUALITY : decodePolicy;
+    }
+
     public boolean isUseOwnCrop() {
         return useOwnCrop;
     }
@@ -87,6 +113,22 @@ public class CropOptions implements Serializable {
             return this;
         }
 
+        /**
+         * 只对自带的裁剪界面生效，裁剪框会向外对齐到8或16像素的MCU网格
+         */
+        public Builder setLossless(boolean lossless) {
+            options.setLossless(lossless);
+            return this;
+        }
+
+        /**
+         * 只对自带的裁剪界面生效，{@link DecodePolicy#SPEED}时JPEG等不透明的源图按RGB_565解码，内存减半
+         */
+        public Builder setDecodePolicy(DecodePolicy decodePolicy) {
+            options.setDecodePolicy(decodePolicy);
+            return this;
+        }
+
         public CropOptions create() {
             return options;
         }
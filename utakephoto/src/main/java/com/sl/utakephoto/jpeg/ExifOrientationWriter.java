@@ -0,0 +1,340 @@
+package com.sl.utakephoto.jpeg;
+
+import com.sl.utakephoto.pool.LruArrayPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 不解码像素，单次流式拷贝JPEG并改写APP1中IFD0的方向标签。
+ * 已有方向标签时原位修改；EXIF中没有方向标签时在TIFF块末尾追加一个带方向的IFD0副本，
+ * 其它偏移都不变；没有EXIF时插入一个最小的APP1。EXIF之前的APPn段(ICC、XMP等)都会检查，
+ * 已有EXIF时不会再插入第二个。不依赖Android API。
+ */
+public final class ExifOrientationWriter {
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_APP0 = 0xE0;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_APP15 = 0xEF;
+    private static final int MARKER_COM = 0xFE;
+    private static final int MARKER_TEM = 0x01;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TYPE_SHORT = 3;
+    private static final int MAX_SEGMENT_LENGTH = 0xFFFF;
+
+    private static final byte[] EXIF_HEADER = new byte[]{'E', 'x', 'i', 'f', 0, 0};
+
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    private ExifOrientationWriter() {
+    }
+
+    /**
+     * @param degrees 顺时针旋转角度，0、90、180或270
+     * @return 对应的EXIF方向值
+     */
+    public static int toExifOrientation(int degrees) {
+        switch (((degrees % 360) + 360) % 360) {
+            case 90:
+                return 6;
+            case 180:
+                return 3;
+            case 270:
+                return 8;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * 把in中的JPEG拷贝到out，方向标签改为degrees。源不是JPEG时不写入任何数据，两个流都不关闭
+     *
+     * @throws IOException 源不是JPEG或者EXIF段格式错误
+     */
+    public static void write(InputStream in, OutputStream out, int degrees) throws IOException {
+        write(in, out, degrees, true);
+    }
+
+    /**
+     * 同{@link #write(InputStream, OutputStream, int)}
+     *
+     * @param replace false时已有的方向标签原样保留(包括角度表示不了的镜像方向)，
+     *                只有没有标签时才写入degrees；degrees为0时不添加标签
+     */
+    public static void write(InputStream in, OutputStream out, int degrees, boolean replace) throws IOException {
+        int orientation = toExifOrientation(degrees);
+        boolean add = replace || orientation != 1;
+        if (in.read() != 0xFF || in.read() != MARKER_SOI) {
+            throw new IOException("not a JPEG");
+        }
+        out.write(0xFF);
+        out.write(MARKER_SOI);
+
+        //EXIF之前的APPn和COM段先暂存，没有EXIF时仍然可以插在JFIF后面，而不是ICC或XMP后面
+        List<JpegImage.Segment> pending = new ArrayList<>();
+        while (true) {
+            int marker = nextMarker(in);
+            if (marker == -1) {
+                throw new EOFException();
+            }
+            if (marker == MARKER_SOI || marker == MARKER_TEM || (marker >= 0xD0 && marker <= 0xD7)) {
+                pending.add(new JpegImage.Segment(marker, null));
+                continue;
+            }
+            if ((marker >= MARKER_APP0 && marker <= MARKER_APP15) || marker == MARKER_COM) {
+                int length = readUnsignedShort(in) - 2;
+                if (length < 0) {
+                    throw new IOException("invalid segment length");
+                }
+                byte[] segment = new byte[length];
+                readFully(in, segment);
+                if (marker == MARKER_APP1 && length >= EXIF_HEADER.length + 8 && isExif(segment)) {
+                    writePending(out, pending, null);
+                    writeSegment(out, marker, rewrite(segment, orientation, replace, add));
+                    break;
+                }
+                pending.add(new JpegImage.Segment(marker, segment));
+                continue;
+            }
+            //到了量化表或图像数据还没有EXIF，后面的数据原样拷贝
+            writePending(out, pending, add ? createExif(orientation) : null);
+            out.write(0xFF);
+            out.write(marker);
+            break;
+        }
+        copy(in, out, Long.MAX_VALUE);
+    }
+
+    /**
+     * 写出暂存的段，exif插在开头的APP0(JFIF/JFXX)段之后
+     *
+     * @param exif 已经找到EXIF时为null
+     */
+    private static void writePending(OutputStream out, List<JpegImage.Segment> pending, byte[] exif)
+            throws IOException {
+        for (JpegImage.Segment segment : pending) {
+            if (exif != null && segment.marker != MARKER_APP0) {
+                writeSegment(out, MARKER_APP1, exif);
+                exif = null;
+            }
+            if (segment.data == null) {
+                out.write(0xFF);
+                out.write(segment.marker);
+            } else {
+                writeSegment(out, segment.marker, segment.data);
+            }
+        }
+        if (exif != null) {
+            writeSegment(out, MARKER_APP1, exif);
+        }
+    }
+
+    /**
+     * @return 设置了IFD0方向的段，原位修改或者在末尾追加一个新的IFD0
+     */
+    static byte[] rewrite(byte[] segment, int orientation) throws IOException {
+        return rewrite(segment, orientation, true, true);
+    }
+
+    /**
+     * @param replace false时已有的方向标签不修改，直接返回segment
+     * @param add     false时没有方向标签也不添加，直接返回segment
+     */
+    private static byte[] rewrite(byte[] segment, int orientation, boolean replace, boolean add)
+            throws IOException {
+        int tiff = EXIF_HEADER.length;
+        int tiffLength = segment.length - tiff;
+        int order = pack(segment, tiff, 4, false);
+        if (order != 0x49492A00 && order != 0x4D4D002A) {
+            throw new IOException("invalid byte order");
+        }
+        boolean littleEndian = order == 0x49492A00;
+        int ifd = pack(segment, tiff + 4, 4, littleEndian);
+        if (ifd < 8 || ifd + 2 > tiffLength) {
+            throw new IOException("invalid IFD0 offset");
+        }
+        int count = pack(segment, tiff + ifd, 2, littleEndian);
+        if (ifd + 2 + count * 12 + 4 > tiffLength) {
+            throw new IOException("truncated IFD0");
+        }
+        int insertAt = count;
+        for (int i = 0; i < count; i++) {
+            int entry = tiff + ifd + 2 + i * 12;
+            int tag = pack(segment, entry, 2, littleEndian);
+            if (tag == TAG_ORIENTATION) {
+                if (!replace) {
+                    return segment;
+                }
+                byte[] patched = segment.clone();
+                unpack(patched, entry + 2, 2, TYPE_SHORT, littleEndian);
+                unpack(patched, entry + 4, 4, 1, littleEndian);
+                unpack(patched, entry + 8, 2, orientation, littleEndian);
+                unpack(patched, entry + 10, 2, 0, littleEndian);
+                return patched;
+            }
+            if (tag > TAG_ORIENTATION && insertAt == count) {
+                insertAt = i;
+            }
+        }
+
+        if (!add) {
+            return segment;
+        }
+        //没有方向标签：在末尾追加一份IFD0，按标签顺序插入方向，头部指向新的IFD0
+        int newIfd = tiffLength + (tiffLength & 1);
+        int newLength = tiff + newIfd + 2 + (count + 1) * 12 + 4;
+        if (newLength + 2 > MAX_SEGMENT_LENGTH) {
+            throw new IOException("EXIF segment too large to add an orientation tag");
+        }
+        byte[] out = new byte[newLength];
+        System.arraycopy(segment, 0, out, 0, segment.length);
+        unpack(out, tiff + 4, 4, newIfd, littleEndian);
+        int src = tiff + ifd + 2;
+        int dst = tiff + newIfd;
+        unpack(out, dst, 2, count + 1, littleEndian);
+        dst += 2;
+        System.arraycopy(segment, src, out, dst, insertAt * 12);
+        dst += insertAt * 12;
+        unpack(out, dst, 2, TAG_ORIENTATION, littleEndian);
+        unpack(out, dst + 2, 2, TYPE_SHORT, littleEndian);
+        unpack(out, dst + 4, 4, 1, littleEndian);
+        unpack(out, dst + 8, 2, orientation, littleEndian);
+        dst += 12;
+        System.arraycopy(segment, src + insertAt * 12, out, dst, (count - insertAt) * 12);
+        dst += (count - insertAt) * 12;
+        //保留到IFD1(缩略图)的链接
+        System.arraycopy(segment, src + count * 12, out, dst, 4);
+        return out;
+    }
+
+    /**
+     * @return 只有方向标签的最小EXIF，大端字节序
+     */
+    static byte[] createExif(int orientation) {
+        byte[] exif = new byte[EXIF_HEADER.length + 8 + 2 + 12 + 4];
+        System.arraycopy(EXIF_HEADER, 0, exif, 0, EXIF_HEADER.length);
+        int tiff = EXIF_HEADER.length;
+        unpack(exif, tiff, 4, 0x4D4D002A, false);
+        unpack(exif, tiff + 4, 4, 8, false);
+        unpack(exif, tiff + 8, 2, 1, false);
+        unpack(exif, tiff + 10, 2, TAG_ORIENTATION, false);
+        unpack(exif, tiff + 12, 2, TYPE_SHORT, false);
+        unpack(exif, tiff + 14, 4, 1, false);
+        unpack(exif, tiff + 18, 2, orientation, false);
+        return exif;
+    }
+
+    private static void writeSegment(OutputStream out, int marker, byte[] payload) throws IOException {
+        out.write(0xFF);
+        out.write(marker);
+        writeUnsignedShort(out, payload.length + 2);
+        out.write(payload);
+    }
+
+    /**
+     * @return APP1的内容是EXIF
+     */
+    static boolean isExif(byte[] segment) {
+        return startsWith(segment, EXIF_HEADER);
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int nextMarker(InputStream in) throws IOException {
+        int b = in.read();
+        while (b != -1 && b != 0xFF) {
+            b = in.read();
+        }
+        while (b == 0xFF) {
+            b = in.read();
+        }
+        return b;
+    }
+
+    private static int readUnsignedShort(InputStream in) throws IOException {
+        int hi = in.read();
+        int lo = in.read();
+        if ((hi | lo) < 0) {
+            throw new EOFException();
+        }
+        return (hi << 8) | lo;
+    }
+
+    private static void writeUnsignedShort(OutputStream out, int value) throws IOException {
+        out.write((value >> 8) & 0xFF);
+        out.write(value & 0xFF);
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = in.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+
+    /**
+     * 拷贝length个字节，{@link Long#MAX_VALUE}时拷贝到流结束
+     */
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        LruArrayPool pool = LruArrayPool.getInstance();
+        byte[] buffer = pool.get((int) Math.min(COPY_BUFFER_SIZE, Math.max(length, 1)));
+        try {
+            while (length > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+                if (read < 0) {
+                    if (length == Long.MAX_VALUE) {
+                        return;
+                    }
+                    throw new EOFException();
+                }
+                out.write(buffer, 0, read);
+                if (length != Long.MAX_VALUE) {
+                    length -= read;
+                }
+            }
+        } finally {
+            pool.put(buffer);
+        }
+    }
+
+    static int pack(byte[] bytes, int offset, int length, boolean littleEndian) {
+        int step = 1;
+        if (littleEndian) {
+            offset += length - 1;
+            step = -1;
+        }
+        int value = 0;
+        while (length-- > 0) {
+            value = (value << 8) | (bytes[offset] & 0xFF);
+            offset += step;
+        }
+        return value;
+    }
+
+    static void unpack(byte[] bytes, int offset, int length, int value, boolean littleEndian) {
+        for (int i = 0; i < length; i++) {
+            int shift = littleEndian ? i * 8 : (length - 1 - i) * 8;
+            bytes[offset + i] = (byte) (value >> shift);
+        }
+    }
+}
@@ -0,0 +1,555 @@
+package com.sl.utakephoto.jpeg;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * 只做熵解码的JPEG读取器，得到量化后的DCT系数。
+ * 支持8位精度的基线和扩展顺序Huffman编码(SOF0/SOF1)，包括重启间隔和非交错的多扫描；
+ * 渐进式、算术编码、无损和12位精度返回null，由调用方回退到位图路径
+ */
+final class JpegDecoder {
+    private static final int MARKER_SOF0 = 0xC0;
+    private static final int MARKER_SOF1 = 0xC1;
+    private static final int MARKER_DHT = 0xC4;
+    private static final int MARKER_DAC = 0xCC;
+    private static final int MARKER_RST0 = 0xD0;
+    private static final int MARKER_RST7 = 0xD7;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_DQT = 0xDB;
+    private static final int MARKER_DNL = 0xDC;
+    private static final int MARKER_DRI = 0xDD;
+    private static final int MARKER_APP0 = 0xE0;
+    private static final int MARKER_APP15 = 0xEF;
+    private static final int MARKER_COM = 0xFE;
+    /**
+     * 8位精度时DC差值最多11位
+     */
+    private static final int MAX_DC_CATEGORY = 11;
+
+    private final InputStream in;
+    private final HuffmanTable[] dcTables = new HuffmanTable[4];
+    private final HuffmanTable[] acTables = new HuffmanTable[4];
+    private final JpegImage image = new JpegImage();
+    private int restartInterval;
+    private boolean frameRead;
+    private boolean scanRead;
+
+    private long bitBuffer;
+    private int bitCount;
+    /**
+     * 熵编码数据中遇到的标记，-1表示没有
+     */
+    private int pendingMarker = -1;
+
+    /**
+     * 请求保留的像素区域，读到SOF后按MCU向外对齐
+     */
+    private final int requestLeft;
+    private final int requestTop;
+    private final int requestRight;
+    private final int requestBottom;
+    /**
+     * SOF中的原图尺寸，扫描按它遍历所有块
+     */
+    private int frameWidth;
+    private int frameHeight;
+    /**
+     * 保留的MCU范围，范围外的块解码到scratch后丢弃
+     */
+    private int windowMcuX0;
+    private int windowMcuY0;
+    private int windowMcuX1;
+    private int windowMcuY1;
+    private final short[] scratch = new short[JpegImage.BLOCK_SIZE];
+
+    private JpegDecoder(InputStream in, int left, int top, int right, int bottom) {
+        this.in = in;
+        this.requestLeft = left;
+        this.requestTop = top;
+        this.requestRight = right;
+        this.requestBottom = bottom;
+    }
+
+    /**
+     * @param in 位于SOI的带缓冲的流
+     * @return 系数，不支持的编码方式或者系数超过{@link JpegTransform#estimateMemory}时返回null
+     */
+    static JpegImage read(InputStream in) throws IOException {
+        return new JpegDecoder(in, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE).read();
+    }
+
+    /**
+     * 只保留和给定区域相交的MCU的系数，裁剪大图时内存只和裁剪区域有关。
+     * 结果是按MCU向外对齐后的区域，在原图中的位置是{@link JpegImage#left}/{@link JpegImage#top}
+     *
+     * @return 同{@link #read(InputStream)}，区域和图片不相交时也返回null
+     */
+    static JpegImage read(InputStream in, int left, int top, int right, int bottom) throws IOException {
+        return new JpegDecoder(in, left, top, right, bottom).read();
+    }
+
+    private JpegImage read() throws IOException {
+        if (in.read() != 0xFF || in.read() != MARKER_SOI) {
+            throw new IOException("not a JPEG");
+        }
+        while (true) {
+            int marker = nextMarker();
+            if (marker == MARKER_SOF0 || marker == MARKER_SOF1) {
+                if (!readFrame()) {
+                    return null;
+                }
+            } else if ((marker >= 0xC2 && marker <= 0xCF && marker != MARKER_DHT && marker != MARKER_DAC)
+                    || marker == MARKER_DNL) {
+                //渐进式、无损、分层和算术编码
+                return null;
+            } else if (marker == MARKER_DHT) {
+                readHuffmanTables();
+            } else if (marker == MARKER_DQT) {
+                readQuantTables();
+            } else if (marker == MARKER_DRI) {
+                readUnsignedShort();
+                restartInterval = readUnsignedShort();
+            } else if (marker == MARKER_SOS) {
+                if (!frameRead) {
+                    throw new IOException("SOS before SOF");
+                }
+                if (!readScan()) {
+                    return null;
+                }
+                scanRead = true;
+            } else if (marker == MARKER_EOI) {
+                break;
+            } else if ((marker >= MARKER_APP0 && marker <= MARKER_APP15) || marker == MARKER_COM) {
+                int length = readUnsignedShort() - 2;
+                if (length < 0) {
+                    throw new IOException("invalid segment length");
+                }
+                byte[] data = new byte[length];
+                readFully(data);
+                image.segments.add(new JpegImage.Segment(marker, data));
+            } else if (marker == MARKER_SOI || (marker >= MARKER_RST0 && marker <= MARKER_RST7) || marker == 0x01) {
+                //没有长度的独立标记
+            } else {
+                skipSegment();
+            }
+        }
+        if (!scanRead) {
+            throw new IOException("no image data");
+        }
+        return image;
+    }
+
+    private boolean readFrame() throws IOException {
+        if (frameRead) {
+            throw new IOException("multiple frames");
+        }
+        readUnsignedShort();
+        int precision = in.read();
+        image.height = readUnsignedShort();
+        image.width = readUnsignedShort();
+        int count = in.read();
+        if (precision != 8 || image.height == 0 || image.width == 0 || count <= 0) {
+            return false;
+        }
+        image.components = new JpegImage.Component[count];
+        for (int i = 0; i < count; i++) {
+            int id = in.read();
+            int sampling = in.read();
+            int tq = in.read();
+            int h = sampling >> 4;
+            int v = sampling & 0x0F;
+            if (h < 1 || h > 4 || v < 1 || v > 4 || tq < 0 || tq > 3) {
+                throw new IOException("invalid component " + id);
+            }
+            image.components[i] = new JpegImage.Component(id, h, v, tq);
+        }
+        if (count == 1) {
+            //单个分量不会交错，采样因子没有意义
+            image.components[0].h = 1;
+            image.components[0].v = 1;
+        }
+        frameWidth = image.width;
+        frameHeight = image.height;
+        int left = Math.max(0, requestLeft);
+        int top = Math.max(0, requestTop);
+        int right = Math.min(frameWidth, requestRight);
+        int bottom = Math.min(frameHeight, requestBottom);
+        if (right <= left || bottom <= top) {
+            return false;
+        }
+        int mcuWidth = image.getMcuWidth();
+        int mcuHeight = image.getMcuHeight();
+        windowMcuX0 = left / mcuWidth;
+        windowMcuY0 = top / mcuHeight;
+        windowMcuX1 = JpegImage.ceilDiv(right, mcuWidth);
+        windowMcuY1 = JpegImage.ceilDiv(bottom, mcuHeight);
+        image.left = windowMcuX0 * mcuWidth;
+        image.top = windowMcuY0 * mcuHeight;
+        image.width = Math.min(frameWidth, windowMcuX1 * mcuWidth) - image.left;
+        image.height = Math.min(frameHeight, windowMcuY1 * mcuHeight) - image.top;
+        image.layout();
+        if (image.coefficientBytes() > JpegTransform.estimateMemory(image.width, image.height)) {
+            //超过调用方申请的预算，比如CMYK
+            return false;
+        }
+        image.allocate();
+        frameRead = true;
+        return true;
+    }
+
+    private void readQuantTables() throws IOException {
+        int length = readUnsignedShort() - 2;
+        while (length > 0) {
+            int pqtq = in.read();
+            if (pqtq < 0) {
+                throw new EOFException();
+            }
+            int pq = pqtq >> 4;
+            int tq = pqtq & 0x0F;
+            if (tq > 3 || pq > 1) {
+                throw new IOException("invalid DQT");
+            }
+            int[] table = new int[JpegImage.BLOCK_SIZE];
+            for (int k = 0; k < JpegImage.BLOCK_SIZE; k++) {
+                table[JpegImage.ZIGZAG[k]] = pq == 0 ? readUnsignedByte() : readUnsignedShort();
+            }
+            image.quantTables[tq] = table;
+            length -= 1 + JpegImage.BLOCK_SIZE * (pq + 1);
+        }
+    }
+
+    private void readHuffmanTables() throws IOException {
+        int length = readUnsignedShort() - 2;
+        while (length > 0) {
+            int tcth = readUnsignedByte();
+            int tc = tcth >> 4;
+            int th = tcth & 0x0F;
+            if (tc > 1 || th > 3) {
+                throw new IOException("invalid DHT");
+            }
+            int[] bits = new int[17];
+            int total = 0;
+            for (int i = 1; i <= 16; i++) {
+                bits[i] = readUnsignedByte();
+                total += bits[i];
+            }
+            if (total > 256) {
+                throw new IOException("invalid DHT");
+            }
+            int[] values = new int[total];
+            for (int i = 0; i < total; i++) {
+                values[i] = readUnsignedByte();
+            }
+            HuffmanTable table = new HuffmanTable(bits, values);
+            if (tc == 0) {
+                dcTables[th] = table;
+            } else {
+                acTables[th] = table;
+            }
+            length -= 17 + total;
+        }
+    }
+
+    private boolean readScan() throws IOException {
+        readUnsignedShort();
+        int count = readUnsignedByte();
+        JpegImage.Component[] scan = new JpegImage.Component[count];
+        HuffmanTable[] dc = new HuffmanTable[count];
+        HuffmanTable[] ac = new HuffmanTable[count];
+        for (int i = 0; i < count; i++) {
+            int id = readUnsignedByte();
+            int tables = readUnsignedByte();
+            for (JpegImage.Component component : image.components) {
+                if (component.id == id) {
+                    scan[i] = component;
+                }
+            }
+            if ((tables >> 4) >= dcTables.length || (tables & 0x0F) >= acTables.length) {
+                throw new IOException("invalid SOS");
+            }
+            dc[i] = dcTables[tables >> 4];
+            ac[i] = acTables[tables & 0x0F];
+            if (scan[i] == null || dc[i] == null || ac[i] == null) {
+                throw new IOException("invalid SOS");
+            }
+        }
+        int ss = readUnsignedByte();
+        int se = readUnsignedByte();
+        int ahal = readUnsignedByte();
+        if (ss != 0 || se != 63 || ahal != 0) {
+            return false;
+        }
+
+        bitBuffer = 0;
+        bitCount = 0;
+        pendingMarker = -1;
+        int[] predictors = new int[count];
+        int restartsLeft = restartInterval;
+
+        if (count == 1) {
+            JpegImage.Component component = scan[0];
+            int maxH = image.getMaxH();
+            int maxV = image.getMaxV();
+            int blocksW = JpegImage.ceilDiv(JpegImage.ceilDiv(frameWidth * component.h, maxH), JpegImage.DCT_SIZE);
+            int blocksH = JpegImage.ceilDiv(JpegImage.ceilDiv(frameHeight * component.v, maxV), JpegImage.DCT_SIZE);
+            for (int by = 0; by < blocksH; by++) {
+                for (int bx = 0; bx < blocksW; bx++) {
+                    if (restartInterval > 0) {
+                        if (restartsLeft == 0) {
+                            processRestart();
+                            predictors[0] = 0;
+                            restartsLeft = restartInterval;
+                        }
+                        restartsLeft--;
+                    }
+                    predictors[0] = decodeBlock(component, bx, by, dc[0], ac[0], predictors[0]);
+                }
+            }
+        } else {
+            int mcusX = JpegImage.ceilDiv(frameWidth, image.getMcuWidth());
+            int mcusY = JpegImage.ceilDiv(frameHeight, image.getMcuHeight());
+            for (int my = 0; my < mcusY; my++) {
+                for (int mx = 0; mx < mcusX; mx++) {
+                    if (restartInterval > 0) {
+                        if (restartsLeft == 0) {
+                            processRestart();
+                            for (int i = 0; i < count; i++) {
+                                predictors[i] = 0;
+                            }
+                            restartsLeft = restartInterval;
+                        }
+                        restartsLeft--;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        JpegImage.Component component = scan[i];
+                        for (int y = 0; y < component.v; y++) {
+                            for (int x = 0; x < component.h; x++) {
+                                predictors[i] = decodeBlock(component, mx * component.h + x, my * component.v + y,
+                                        dc[i], ac[i], predictors[i]);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param bx 整张图中的块列号，保留区域外的块解码后丢弃
+     */
+    private int decodeBlock(JpegImage.Component component, int bx, int by, HuffmanTable dc, HuffmanTable ac,
+                            int predictor) throws IOException {
+        int wbx = bx - windowMcuX0 * component.h;
+        int wby = by - windowMcuY0 * component.v;
+        short[] block;
+        int offset;
+        if (wbx >= 0 && wby >= 0 && wbx < component.blocksW && wby < component.blocksH) {
+            block = component.coefficients;
+            offset = component.offset(wbx, wby);
+        } else {
+            block = scratch;
+            offset = 0;
+            Arrays.fill(scratch, (short) 0);
+        }
+        int t = decodeSymbol(dc);
+        if (t > MAX_DC_CATEGORY) {
+            throw new IOException("corrupt DC coefficient");
+        }
+        if (t > 0) {
+            predictor += extend(readBits(t), t);
+        }
+        block[offset] = (short) predictor;
+        for (int k = 1; k < JpegImage.BLOCK_SIZE; k++) {
+            int rs = decodeSymbol(ac);
+            int r = rs >> 4;
+            int s = rs & 0x0F;
+            if (s == 0) {
+                if (r != 15) {
+                    break;
+                }
+                k += 15;
+            } else {
+                k += r;
+                if (k > 63) {
+                    throw new IOException("corrupt AC coefficients");
+                }
+                block[offset + JpegImage.ZIGZAG[k]] = (short) extend(readBits(s), s);
+            }
+        }
+        return predictor;
+    }
+
+    private void processRestart() throws IOException {
+        bitBuffer = 0;
+        bitCount = 0;
+        int marker = pendingMarker;
+        if (marker == -1) {
+            marker = nextMarker();
+        }
+        pendingMarker = -1;
+        if (marker < MARKER_RST0 || marker > MARKER_RST7) {
+            throw new IOException("missing restart marker");
+        }
+    }
+
+    private int nextMarker() throws IOException {
+        if (pendingMarker != -1) {
+            int marker = pendingMarker;
+            pendingMarker = -1;
+            return marker;
+        }
+        int b = in.read();
+        while (b != -1 && b != 0xFF) {
+            b = in.read();
+        }
+        while (b == 0xFF) {
+            b = in.read();
+        }
+        if (b == -1) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private void fillBits(int count) throws IOException {
+        while (bitCount < count) {
+            int b = 0;
+            if (pendingMarker == -1) {
+                b = in.read();
+                if (b == 0xFF) {
+                    int next = in.read();
+                    while (next == 0xFF) {
+                        next = in.read();
+                    }
+                    if (next != 0) {
+                        //熵编码数据中遇到标记，之后补0直到扫描结束
+                        pendingMarker = next == -1 ? MARKER_EOI : next;
+                        b = 0;
+                    }
+                } else if (b == -1) {
+                    pendingMarker = MARKER_EOI;
+                    b = 0;
+                }
+            }
+            bitBuffer = (bitBuffer << 8) | b;
+            bitCount += 8;
+        }
+    }
+
+    private int readBits(int count) throws IOException {
+        fillBits(count);
+        bitCount -= count;
+        return (int) (bitBuffer >>> bitCount) & ((1 << count) - 1);
+    }
+
+    private int decodeSymbol(HuffmanTable table) throws IOException {
+        fillBits(16);
+        int look = (int) (bitBuffer >>> (bitCount - HuffmanTable.LOOKAHEAD)) & ((1 << HuffmanTable.LOOKAHEAD) - 1);
+        int length = table.lookLength[look];
+        if (length != 0) {
+            bitCount -= length;
+            return table.lookSymbol[look];
+        }
+        for (length = HuffmanTable.LOOKAHEAD + 1; length <= 16; length++) {
+            int code = (int) (bitBuffer >>> (bitCount - length)) & ((1 << length) - 1);
+            if (code <= table.maxCode[length]) {
+                bitCount -= length;
+                return table.values[table.valuePointer[length] + code - table.minCode[length]];
+            }
+        }
+        throw new IOException("corrupt Huffman data");
+    }
+
+    private static int extend(int value, int bits) {
+        return value < (1 << (bits - 1)) ? value - (1 << bits) + 1 : value;
+    }
+
+    private void skipSegment() throws IOException {
+        int length = readUnsignedShort() - 2;
+        while (length > 0) {
+            long skipped = in.skip(length);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    private int readUnsignedByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private int readUnsignedShort() throws IOException {
+        return (readUnsignedByte() << 8) | readUnsignedByte();
+    }
+
+    private void readFully(byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = in.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+
+    /**
+     * 解码用的Huffman表，短码查表，长码按F.2.2.3逐位比较
+     */
+    private static final class HuffmanTable {
+        static final int LOOKAHEAD = 9;
+
+        final int[] values;
+        final int[] maxCode = new int[18];
+        final int[] minCode = new int[17];
+        final int[] valuePointer = new int[17];
+        final byte[] lookLength = new byte[1 << LOOKAHEAD];
+        final int[] lookSymbol = new int[1 << LOOKAHEAD];
+
+        HuffmanTable(int[] bits, int[] values) throws IOException {
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                valuePointer[length] = k;
+                minCode[length] = code;
+                if (bits[length] == 0) {
+                    maxCode[length] = -1;
+                } else {
+                    for (int i = 0; i < bits[length]; i++) {
+                        if (code >= (1 << length)) {
+                            throw new IOException("invalid DHT");
+                        }
+                        if (length <= LOOKAHEAD) {
+                            int shift = LOOKAHEAD - length;
+                            int first = code << shift;
+                            for (int j = 0; j < (1 << shift); j++) {
+                                lookLength[first + j] = (byte) length;
+                                lookSymbol[first + j] = values[k];
+                            }
+                        }
+                        code++;
+                        k++;
+                    }
+                    maxCode[length] = code - 1;
+                }
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+}
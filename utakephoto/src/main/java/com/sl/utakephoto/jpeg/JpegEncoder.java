@@ -0,0 +1,407 @@
+package com.sl.utakephoto.jpeg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * 把系数重新熵编码为顺序JPEG。先统计一遍符号频率生成最优Huffman表(K.2)，
+ * 系数本身原样写出，所以是无损的。输出单个交错扫描，不写重启间隔
+ */
+final class JpegEncoder {
+    private static final int MARKER_SOF0 = 0xC0;
+    private static final int MARKER_SOF1 = 0xC1;
+    private static final int MARKER_DHT = 0xC4;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_DQT = 0xDB;
+
+    /**
+     * 交错扫描中一个MCU最多10个块(B.2.3)
+     */
+    static final int MAX_BLOCKS_IN_MCU = 10;
+
+    private final JpegImage image;
+    private final OutputStream out;
+    /**
+     * 亮度用表0，其余分量共用表1
+     */
+    private final int[][] dcFrequencies = new int[2][257];
+    private final int[][] acFrequencies = new int[2][257];
+    private final int[][] dcCodes = new int[2][];
+    private final int[][] dcSizes = new int[2][];
+    private final int[][] acCodes = new int[2][];
+    private final int[][] acSizes = new int[2][];
+    /**
+     * 当前编码的块，分量可能是旋转视图，系数逐块读出
+     */
+    private final short[] block = new short[JpegImage.BLOCK_SIZE];
+
+    private int bitBuffer;
+    private int bitCount;
+
+    private JpegEncoder(JpegImage image, OutputStream out) {
+        this.image = image;
+        this.out = out;
+    }
+
+    /**
+     * @return 分量布局不能写成一个交错扫描时返回false
+     */
+    static boolean canWrite(JpegImage image) {
+        int blocks = 0;
+        for (JpegImage.Component component : image.components) {
+            if (image.quantTables[component.tq] == null) {
+                return false;
+            }
+            blocks += component.h * component.v;
+        }
+        return image.components.length == 1 || blocks <= MAX_BLOCKS_IN_MCU;
+    }
+
+    /**
+     * 写出图片，不flush也不关闭out
+     */
+    static void write(JpegImage image, OutputStream out) throws IOException {
+        if (!canWrite(image)) {
+            throw new IOException("unsupported component layout");
+        }
+        new JpegEncoder(image, out).write();
+    }
+
+    private void write() throws IOException {
+        encodeScan(true);
+        byte[][] dcTables = new byte[2][];
+        byte[][] acTables = new byte[2][];
+        int tableCount = image.components.length == 1 ? 1 : 2;
+        for (int t = 0; t < tableCount; t++) {
+            dcTables[t] = optimalTable(dcFrequencies[t]);
+            acTables[t] = optimalTable(acFrequencies[t]);
+            dcCodes[t] = new int[256];
+            dcSizes[t] = new int[256];
+            acCodes[t] = new int[256];
+            acSizes[t] = new int[256];
+            buildCodes(dcTables[t], dcCodes[t], dcSizes[t]);
+            buildCodes(acTables[t], acCodes[t], acSizes[t]);
+        }
+
+        out.write(0xFF);
+        out.write(MARKER_SOI);
+        for (JpegImage.Segment segment : image.segments) {
+            writeMarker(segment.marker, segment.data.length);
+            out.write(segment.data);
+        }
+        boolean extended = writeQuantTables();
+        writeFrame(extended);
+        for (int t = 0; t < tableCount; t++) {
+            writeHuffmanTable(t, dcTables[t]);
+            writeHuffmanTable(0x10 | t, acTables[t]);
+        }
+        writeScanHeader();
+        encodeScan(false);
+        flushBits();
+        out.write(0xFF);
+        out.write(MARKER_EOI);
+    }
+
+    /**
+     * @return 写了基线不允许的16位量化表
+     */
+    private boolean writeQuantTables() throws IOException {
+        boolean extended = false;
+        boolean[] written = new boolean[4];
+        for (JpegImage.Component component : image.components) {
+            int tq = component.tq;
+            if (written[tq]) {
+                continue;
+            }
+            written[tq] = true;
+            int[] table = image.quantTables[tq];
+            boolean wide = false;
+            for (int value : table) {
+                wide |= value > 255;
+            }
+            extended |= wide;
+            writeMarker(MARKER_DQT, 1 + JpegImage.BLOCK_SIZE * (wide ? 2 : 1));
+            out.write((wide ? 0x10 : 0) | tq);
+            for (int k = 0; k < JpegImage.BLOCK_SIZE; k++) {
+                int value = table[JpegImage.ZIGZAG[k]];
+                if (wide) {
+                    out.write(value >> 8);
+                }
+                out.write(value & 0xFF);
+            }
+        }
+        return extended;
+    }
+
+    private void writeFrame(boolean extended) throws IOException {
+        writeMarker(extended ? MARKER_SOF1 : MARKER_SOF0, 6 + 3 * image.components.length);
+        out.write(8);
+        writeShort(image.height);
+        writeShort(image.width);
+        out.write(image.components.length);
+        for (JpegImage.Component component : image.components) {
+            out.write(component.id);
+            out.write((component.h << 4) | component.v);
+            out.write(component.tq);
+        }
+    }
+
+    private void writeHuffmanTable(int classAndId, byte[] table) throws IOException {
+        writeMarker(MARKER_DHT, 1 + table.length);
+        out.write(classAndId);
+        out.write(table);
+    }
+
+    private void writeScanHeader() throws IOException {
+        writeMarker(MARKER_SOS, 4 + 2 * image.components.length);
+        out.write(image.components.length);
+        for (int i = 0; i < image.components.length; i++) {
+            out.write(image.components[i].id);
+            out.write(i == 0 ? 0x00 : 0x11);
+        }
+        out.write(0);
+        out.write(63);
+        out.write(0);
+    }
+
+    /**
+     * @param statistics true只统计符号频率，false输出编码
+     */
+    private void encodeScan(boolean statistics) throws IOException {
+        JpegImage.Component[] components = image.components;
+        int[] predictors = new int[components.length];
+        if (components.length == 1) {
+            JpegImage.Component component = components[0];
+            int blocksW = JpegImage.ceilDiv(image.width, JpegImage.DCT_SIZE);
+            int blocksH = JpegImage.ceilDiv(image.height, JpegImage.DCT_SIZE);
+            for (int by = 0; by < blocksH; by++) {
+                for (int bx = 0; bx < blocksW; bx++) {
+                    component.readBlock(bx, by, block);
+                    predictors[0] = encodeBlock(0, predictors[0], statistics);
+                }
+            }
+            return;
+        }
+        int mcusX = image.getMcusX();
+        int mcusY = image.getMcusY();
+        for (int my = 0; my < mcusY; my++) {
+            for (int mx = 0; mx < mcusX; mx++) {
+                for (int i = 0; i < components.length; i++) {
+                    JpegImage.Component component = components[i];
+                    int table = i == 0 ? 0 : 1;
+                    for (int y = 0; y < component.v; y++) {
+                        for (int x = 0; x < component.h; x++) {
+                            component.readBlock(mx * component.h + x, my * component.v + y, block);
+                            predictors[i] = encodeBlock(table, predictors[i], statistics);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private int encodeBlock(int table, int predictor, boolean statistics) throws IOException {
+        int dc = block[0];
+        int diff = dc - predictor;
+        int size = magnitude(diff);
+        if (statistics) {
+            dcFrequencies[table][size]++;
+        } else {
+            writeBits(dcCodes[table][size], dcSizes[table][size]);
+            writeBits(diff < 0 ? diff - 1 : diff, size);
+        }
+        int run = 0;
+        for (int k = 1; k < JpegImage.BLOCK_SIZE; k++) {
+            int value = block[JpegImage.ZIGZAG[k]];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                if (statistics) {
+                    acFrequencies[table][0xF0]++;
+                } else {
+                    writeBits(acCodes[table][0xF0], acSizes[table][0xF0]);
+                }
+                run -= 16;
+            }
+            size = magnitude(value);
+            int symbol = (run << 4) | size;
+            if (statistics) {
+                acFrequencies[table][symbol]++;
+            } else {
+                writeBits(acCodes[table][symbol], acSizes[table][symbol]);
+                writeBits(value < 0 ? value - 1 : value, size);
+            }
+            run = 0;
+        }
+        if (run > 0) {
+            if (statistics) {
+                acFrequencies[table][0]++;
+            } else {
+                writeBits(acCodes[table][0], acSizes[table][0]);
+            }
+        }
+        return dc;
+    }
+
+    private static int magnitude(int value) {
+        if (value < 0) {
+            value = -value;
+        }
+        int bits = 0;
+        while (value != 0) {
+            bits++;
+            value >>= 1;
+        }
+        return bits;
+    }
+
+    private void writeBits(int value, int count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        bitBuffer = (bitBuffer << count) | (value & ((1 << count) - 1));
+        bitCount += count;
+        while (bitCount >= 8) {
+            int b = (bitBuffer >> (bitCount - 8)) & 0xFF;
+            out.write(b);
+            if (b == 0xFF) {
+                out.write(0);
+            }
+            bitCount -= 8;
+        }
+    }
+
+    private void flushBits() throws IOException {
+        if (bitCount > 0) {
+            writeBits(0x7F, 8 - bitCount);
+        }
+        bitBuffer = 0;
+        bitCount = 0;
+    }
+
+    private void writeMarker(int marker, int payloadLength) throws IOException {
+        out.write(0xFF);
+        out.write(marker);
+        writeShort(payloadLength + 2);
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write((value >> 8) & 0xFF);
+        out.write(value & 0xFF);
+    }
+
+    /**
+     * 按符号频率生成码长不超过16位的Huffman表，和libjpeg的jpeg_gen_optimal_table相同
+     *
+     * @return DHT中Tc/Th之后的内容：16个码长计数，后面是符号
+     */
+    static byte[] optimalTable(int[] frequencies) {
+        int[] freq = Arrays.copyOf(frequencies, 257);
+        //保留一个码字，真正的码不会全是1
+        freq[256] = 1;
+        int[] codeSize = new int[257];
+        int[] others = new int[257];
+        Arrays.fill(others, -1);
+
+        while (true) {
+            int c1 = -1;
+            long v = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++) {
+                if (freq[i] != 0 && freq[i] <= v) {
+                    v = freq[i];
+                    c1 = i;
+                }
+            }
+            int c2 = -1;
+            v = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++) {
+                if (freq[i] != 0 && freq[i] <= v && i != c1) {
+                    v = freq[i];
+                    c2 = i;
+                }
+            }
+            if (c2 < 0) {
+                break;
+            }
+            freq[c1] += freq[c2];
+            freq[c2] = 0;
+            codeSize[c1]++;
+            while (others[c1] >= 0) {
+                c1 = others[c1];
+                codeSize[c1]++;
+            }
+            others[c1] = c2;
+            codeSize[c2]++;
+            while (others[c2] >= 0) {
+                c2 = others[c2];
+                codeSize[c2]++;
+            }
+        }
+
+        int[] bits = new int[33];
+        for (int i = 0; i <= 256; i++) {
+            if (codeSize[i] != 0) {
+                bits[codeSize[i]]++;
+            }
+        }
+        //码长限制到16位(K.3)
+        for (int i = 32; i > 16; i--) {
+            while (bits[i] > 0) {
+                int j = i - 2;
+                while (bits[j] == 0) {
+                    j--;
+                }
+                bits[i] -= 2;
+                bits[i - 1]++;
+                bits[j + 1] += 2;
+                bits[j]--;
+            }
+        }
+        //去掉保留的码字，它的码最长
+        int i = 16;
+        while (bits[i] == 0) {
+            i--;
+        }
+        bits[i]--;
+
+        int total = 0;
+        for (i = 1; i <= 16; i++) {
+            total += bits[i];
+        }
+        byte[] table = new byte[16 + total];
+        for (i = 1; i <= 16; i++) {
+            table[i - 1] = (byte) bits[i];
+        }
+        int p = 16;
+        for (int length = 1; length <= 32; length++) {
+            for (int symbol = 0; symbol <= 255; symbol++) {
+                if (codeSize[symbol] == length) {
+                    table[p++] = (byte) symbol;
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * 从DHT内容得到每个符号的码和码长(C.2)
+     */
+    private static void buildCodes(byte[] table, int[] codes, int[] sizes) {
+        int code = 0;
+        int p = 16;
+        for (int length = 1; length <= 16; length++) {
+            int count = table[length - 1] & 0xFF;
+            for (int i = 0; i < count; i++) {
+                int symbol = table[p++] & 0xFF;
+                codes[symbol] = code++;
+                sizes[symbol] = length;
+            }
+            code <<= 1;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.sl.utakephoto.jpeg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 熵解码后的JPEG：量化后的DCT系数（自然顺序，每块64个short）、量化表和需要保留的APPn/COM段。
+ * 无损变换只在这一层操作，不做反量化和IDCT
+ */
+final class JpegImage {
+    static final int DCT_SIZE = 8;
+    static final int BLOCK_SIZE = 64;
+
+    /**
+     * zigzag序号到自然顺序的下标
+     */
+    static final int[] ZIGZAG = new int[]{
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63};
+
+    int width;
+    int height;
+    /**
+     * 只解码了部分MCU时，这块区域在原图中的位置，见{@link JpegDecoder#read(java.io.InputStream, int, int, int, int)}
+     */
+    int left;
+    int top;
+    Component[] components;
+    /**
+     * 自然顺序的量化表，下标为Tq
+     */
+    final int[][] quantTables = new int[4][];
+    /**
+     * 按原顺序保留的APPn和COM段
+     */
+    final List<Segment> segments = new ArrayList<>();
+
+    int getMaxH() {
+        int max = 1;
+        for (Component component : components) {
+            max = Math.max(max, component.h);
+        }
+        return max;
+    }
+
+    int getMaxV() {
+        int max = 1;
+        for (Component component : components) {
+            max = Math.max(max, component.v);
+        }
+        return max;
+    }
+
+    /**
+     * @return MCU的像素宽度，无损变换的边缘按它对齐
+     */
+    int getMcuWidth() {
+        return getMaxH() * DCT_SIZE;
+    }
+
+    int getMcuHeight() {
+        return getMaxV() * DCT_SIZE;
+    }
+
+    int getMcusX() {
+        return ceilDiv(width, getMcuWidth());
+    }
+
+    int getMcusY() {
+        return ceilDiv(height, getMcuHeight());
+    }
+
+    /**
+     * 按MCU网格计算每个分量的块数，不分配系数
+     */
+    void layout() {
+        int mcusX = getMcusX();
+        int mcusY = getMcusY();
+        for (Component component : components) {
+            component.blocksW = mcusX * component.h;
+            component.blocksH = mcusY * component.v;
+        }
+    }
+
+    /**
+     * @return 整个MCU网格的系数占用的字节数，需要先{@link #layout()}
+     */
+    long coefficientBytes() {
+        long bytes = 0;
+        for (Component component : components) {
+            bytes += (long) component.blocksW * component.blocksH * BLOCK_SIZE * 2;
+        }
+        return bytes;
+    }
+
+    /**
+     * 按整个MCU网格为每个分量分配系数
+     */
+    void allocate() {
+        layout();
+        for (Component component : components) {
+            long length = (long) component.blocksW * component.blocksH * BLOCK_SIZE;
+            if (length > Integer.MAX_VALUE) {
+                throw new OutOfMemoryError("image too large: " + width + "x" + height);
+            }
+            component.coefficients = new short[(int) length];
+        }
+    }
+
+    static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    static final class Component {
+        final int id;
+        int h;
+        int v;
+        final int tq;
+        /**
+         * 按MCU网格补齐后的块数
+         */
+        int blocksW;
+        int blocksH;
+        short[] coefficients;
+        /**
+         * 不为null时这个分量没有自己的系数，读块时从source按degrees旋转后取，见{@link #view}
+         */
+        private Component source;
+        private int degrees;
+        private int sourceBlocksW;
+        private int sourceBlocksH;
+        private short[] scratch;
+
+        Component(int id, int h, int v, int tq) {
+            this.id = id;
+            this.h = h;
+            this.v = v;
+            this.tq = tq;
+        }
+
+        /**
+         * 旋转后的分量，不复制系数，编码时逐块从source变换，峰值内存只有源图的系数
+         *
+         * @param sourceBlocksW 保留区域在source中的块数，只在被裁掉不完整MCU的边上用到
+         */
+        static Component view(Component source, int degrees, int sourceBlocksW, int sourceBlocksH) {
+            boolean transpose = degrees == 90 || degrees == 270;
+            Component view = new Component(source.id, transpose ? source.v : source.h,
+                    transpose ? source.h : source.v, source.tq);
+            view.source = source;
+            view.degrees = degrees;
+            view.sourceBlocksW = sourceBlocksW;
+            view.sourceBlocksH = sourceBlocksH;
+            view.scratch = new short[BLOCK_SIZE];
+            return view;
+        }
+
+        int offset(int bx, int by) {
+            return (by * blocksW + bx) * BLOCK_SIZE;
+        }
+
+        /**
+         * 把(bx, by)处的块按自然顺序复制到block
+         */
+        void readBlock(int bx, int by, short[] block) {
+            if (source == null) {
+                System.arraycopy(coefficients, offset(bx, by), block, 0, BLOCK_SIZE);
+                return;
+            }
+            int sbx;
+            int sby;
+            switch (degrees) {
+                case 90:
+                    sbx = by;
+                    sby = sourceBlocksH - 1 - bx;
+                    break;
+                case 180:
+                    sbx = sourceBlocksW - 1 - bx;
+                    sby = sourceBlocksH - 1 - by;
+                    break;
+                case 270:
+                    sbx = sourceBlocksW - 1 - by;
+                    sby = bx;
+                    break;
+                default:
+                    source.readBlock(bx, by, block);
+                    return;
+            }
+            source.readBlock(sbx, sby, scratch);
+            JpegTransform.transformBlock(scratch, 0, block, 0, degrees);
+        }
+    }
+
+    static final class Segment {
+        final int marker;
+        final byte[] data;
+
+        Segment(int marker, byte[] data) {
+            this.marker = marker;
+            this.data = data;
+        }
+    }
+}
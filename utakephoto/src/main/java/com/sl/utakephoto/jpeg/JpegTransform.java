@@ -0,0 +1,255 @@
+package com.sl.utakephoto.jpeg;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ListIterator;
+
+/**
+ * 类似jpegtran的无损JPEG变换，在DCT系数上旋转和按MCU对齐裁剪，不经过Bitmap，没有二次压缩的损失。
+ * 90/270度转置系数块并交换量化表行列，180度只翻转符号。
+ * 旋转后会落到左边或上边的不完整MCU无法无损表示，trim为true时和jpegtran -trim一样裁掉(最多一个MCU，8或16像素)。
+ * 纯Java实现，可以直接在JVM上测试
+ */
+public final class JpegTransform {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    /**
+     * 采样因子最大为4，MCU最大32像素
+     */
+    private static final int MAX_MCU_SIZE = 4 * JpegImage.DCT_SIZE;
+    private static final int MAX_COMPONENTS = 3;
+
+    private JpegTransform() {
+    }
+
+    /**
+     * 顺时针旋转degrees并把EXIF方向重置为正常，按自身EXIF方向旋转后的照片在任何查看器里都是正的
+     *
+     * @param trim true时裁掉旋转后会落到左边或上边的不完整MCU，false时这种情况放弃
+     * @return 不能无损变换时返回false(渐进式、算术编码、12位、超过{@link #estimateMemory}，
+     * 或者需要裁边但trim为false)，此时没有向out写入任何数据
+     * @throws IOException 数据损坏或者截断，解码阶段抛出，同样没有写入任何数据
+     */
+    public static boolean rotate(InputStream in, OutputStream out, int degrees, boolean trim) throws IOException {
+        JpegImage source = JpegDecoder.read(buffered(in));
+        if (source == null || !JpegEncoder.canWrite(source)) {
+            return false;
+        }
+        JpegImage rotated = rotate(source, degrees, trim);
+        if (rotated == null) {
+            return false;
+        }
+        resetOrientation(rotated);
+        JpegEncoder.write(rotated, out);
+        return true;
+    }
+
+    /**
+     * 不解码像素地裁剪，再像{@link #rotate}一样顺时针旋转degrees。内存里只保留裁剪区域周围的MCU。
+     * 左边和上边向外对齐到MCU网格(8或16像素)，右边和下边向外对齐到网格或图片边缘；
+     * 旋转后落到左边或上边的不完整MCU会被裁掉
+     *
+     * @param left    裁剪区域，存储方向(未旋转)的坐标
+     * @param degrees 裁剪后的旋转角度
+     * @param exact   true时只有实际写出的区域正好等于请求的区域才写出
+     * @param outRect 不为null时写入实际输出的区域，依次为left、top、right、bottom，存储方向的坐标
+     * @return 不能无损裁剪、区域为空、裁边会丢掉请求的像素，或者exact为true而区域没有对齐MCU时返回false，
+     * 此时没有向out写入任何数据
+     */
+    public static boolean crop(InputStream in, OutputStream out, int left, int top, int right, int bottom,
+                               int degrees, boolean exact, int[] outRect) throws IOException {
+        int d = normalize(degrees);
+        if (d % 90 != 0) {
+            return false;
+        }
+        JpegImage source = JpegDecoder.read(buffered(in), left, top, right, bottom);
+        if (source == null || !JpegEncoder.canWrite(source)) {
+            return false;
+        }
+        left = Math.max(0, left);
+        top = Math.max(0, top);
+        right = Math.min(source.left + source.width, right);
+        bottom = Math.min(source.top + source.height, bottom);
+        //旋转裁掉不完整的MCU后剩下的区域，和rotate(JpegImage, int, boolean)一致
+        int width = source.width;
+        int height = source.height;
+        if (d == 180 || d == 270) {
+            width -= width % source.getMcuWidth();
+        }
+        if (d == 90 || d == 180) {
+            height -= height % source.getMcuHeight();
+        }
+        int keptRight = source.left + width;
+        int keptBottom = source.top + height;
+        if (keptRight < right || keptBottom < bottom) {
+            return false;
+        }
+        if (exact && (source.left != left || source.top != top || keptRight != right || keptBottom != bottom)) {
+            return false;
+        }
+        JpegImage rotated = rotate(source, d, true);
+        if (rotated == null) {
+            return false;
+        }
+        resetOrientation(rotated);
+        JpegEncoder.write(rotated, out);
+        if (outRect != null) {
+            outRect[0] = source.left;
+            outRect[1] = source.top;
+            outRect[2] = keptRight;
+            outRect[3] = keptBottom;
+        }
+        return true;
+    }
+
+    /**
+     * {@link #crop}裁剪这么大的区域时占用内存的上限，区域四边都按MCU向外扩展后计算
+     */
+    public static long estimateCropMemory(int width, int height) {
+        return estimateMemory(width + 2 * MAX_MCU_SIZE, height + 2 * MAX_MCU_SIZE);
+    }
+
+    /**
+     * {@link #rotate}处理这么大的图片时占用内存的上限：三个全分辨率分量的量化系数，按最大的MCU补齐。
+     * 需要更多内存的图片(比如四个分量的CMYK)直接放弃，不写入任何数据。
+     * 调用方在变换前按这个值申请解码预算，放不下时改为解码像素
+     */
+    public static long estimateMemory(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        long paddedWidth = JpegImage.ceilDiv(width, MAX_MCU_SIZE) * (long) MAX_MCU_SIZE;
+        long paddedHeight = JpegImage.ceilDiv(height, MAX_MCU_SIZE) * (long) MAX_MCU_SIZE;
+        return paddedWidth * paddedHeight * MAX_COMPONENTS * 2;
+    }
+
+    /**
+     * @return 这个尺寸的图片旋转时不需要裁边
+     */
+    public static boolean isPerfect(int width, int height, int mcuWidth, int mcuHeight, int degrees) {
+        int d = normalize(degrees);
+        boolean widthFits = (d != 180 && d != 270) || width % mcuWidth == 0;
+        boolean heightFits = (d != 90 && d != 180) || height % mcuHeight == 0;
+        return widthFits && heightFits;
+    }
+
+    /**
+     * 旋转系数。结果只引用源图的系数，编码时逐块变换，不会再分配一份系数
+     *
+     * @return 需要裁边而trim为false，或者裁边后什么都不剩时返回null
+     */
+    static JpegImage rotate(JpegImage src, int degrees, boolean trim) {
+        int d = normalize(degrees);
+        if (d % 90 != 0) {
+            return null;
+        }
+        int mcuWidth = src.getMcuWidth();
+        int mcuHeight = src.getMcuHeight();
+        int width = src.width;
+        int height = src.height;
+        if (!isPerfect(width, height, mcuWidth, mcuHeight, d)) {
+            if (!trim) {
+                return null;
+            }
+            if (d == 180 || d == 270) {
+                width -= width % mcuWidth;
+            }
+            if (d == 90 || d == 180) {
+                height -= height % mcuHeight;
+            }
+            if (width == 0 || height == 0) {
+                return null;
+            }
+        }
+
+        boolean transpose = d == 90 || d == 270;
+        JpegImage dst = new JpegImage();
+        dst.width = transpose ? height : width;
+        dst.height = transpose ? width : height;
+        dst.components = new JpegImage.Component[src.components.length];
+        for (int i = 0; i < src.components.length; i++) {
+            JpegImage.Component c = src.components[i];
+            //保留区域的块数，只在裁到整MCU的边上用到
+            dst.components[i] = JpegImage.Component.view(c, d, width / mcuWidth * c.h, height / mcuHeight * c.v);
+        }
+        dst.layout();
+        for (int t = 0; t < src.quantTables.length; t++) {
+            int[] table = src.quantTables[t];
+            dst.quantTables[t] = table == null ? null : transpose ? transposed(table) : table.clone();
+        }
+        dst.segments.addAll(src.segments);
+        return dst;
+    }
+
+    /**
+     * 旋转一个自然顺序的8x8 DCT系数块。沿某个轴镜像时该轴的奇数频率取反，旋转90度时还要转置
+     */
+    static void transformBlock(short[] src, int srcOffset, short[] dst, int dstOffset, int degrees) {
+        for (int r = 0; r < JpegImage.DCT_SIZE; r++) {
+            for (int c = 0; c < JpegImage.DCT_SIZE; c++) {
+                int value;
+                switch (degrees) {
+                    case 90:
+                        value = src[srcOffset + c * JpegImage.DCT_SIZE + r];
+                        if ((c & 1) != 0) {
+                            value = -value;
+                        }
+                        break;
+                    case 180:
+                        value = src[srcOffset + r * JpegImage.DCT_SIZE + c];
+                        if (((r + c) & 1) != 0) {
+                            value = -value;
+                        }
+                        break;
+                    case 270:
+                        value = src[srcOffset + c * JpegImage.DCT_SIZE + r];
+                        if ((r & 1) != 0) {
+                            value = -value;
+                        }
+                        break;
+                    default:
+                        value = src[srcOffset + r * JpegImage.DCT_SIZE + c];
+                        break;
+                }
+                dst[dstOffset + r * JpegImage.DCT_SIZE + c] = (short) value;
+            }
+        }
+    }
+
+    private static int[] transposed(int[] table) {
+        int[] result = new int[JpegImage.BLOCK_SIZE];
+        for (int r = 0; r < JpegImage.DCT_SIZE; r++) {
+            for (int c = 0; c < JpegImage.DCT_SIZE; c++) {
+                result[r * JpegImage.DCT_SIZE + c] = table[c * JpegImage.DCT_SIZE + r];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 把EXIF方向改为正常，无法改写的EXIF直接去掉，避免查看器把已经转正的像素再转一次
+     */
+    static void resetOrientation(JpegImage image) {
+        ListIterator<JpegImage.Segment> iterator = image.segments.listIterator();
+        while (iterator.hasNext()) {
+            JpegImage.Segment segment = iterator.next();
+            if (segment.marker != 0xE1 || !ExifOrientationWriter.isExif(segment.data)) {
+                continue;
+            }
+            try {
+                iterator.set(new JpegImage.Segment(segment.marker, ExifOrientationWriter.rewrite(segment.data, 1)));
+            } catch (IOException e) {
+                iterator.remove();
+            }
+        }
+    }
+
+    static int normalize(int degrees) {
+        return ((degrees % 360) + 360) % 360;
+    }
+
+    private static InputStream buffered(InputStream in) {
+        return in instanceof BufferedInputStream ? in : new BufferedInputStream(in, BUFFER_SIZE);
+    }
+}
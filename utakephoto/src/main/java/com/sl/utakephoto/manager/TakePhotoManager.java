@@ -6,6 +6,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
@@ -17,36 +18,51 @@ import android.util.Log;
 import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
 import androidx.fragment.app.Fragment;
 
 
 import com.sl.utakephoto.compress.CompressConfig;
 import com.sl.utakephoto.compress.CompressImage;
+import com.sl.utakephoto.utils.FileNameGenerator;
 import com.sl.utakephoto.utils.ImgUtil;
+import com.sl.utakephoto.utils.MemoryBudget;
 import com.sl.utakephoto.utils.IntentUtils;
 import com.sl.utakephoto.utils.TConstant;
 import com.sl.utakephoto.compress.CompressImageImpl;
+import com.sl.utakephoto.compress.CompressJob;
+import com.sl.utakephoto.compress.CompressResult;
 import com.sl.utakephoto.crop.CropActivity;
 import com.sl.utakephoto.crop.CropExtras;
 import com.sl.utakephoto.crop.CropOptions;
 import com.sl.utakephoto.exception.TakeException;
+import com.sl.utakephoto.jpeg.ExifOrientationWriter;
+import com.sl.utakephoto.jpeg.JpegTransform;
+import com.sl.utakephoto.pool.LruArrayPool;
+import com.sl.utakephoto.pool.LruBitmapPool;
+import com.sl.utakephoto.pool.PooledBufferedOutputStream;
+import com.sl.utakephoto.probe.ImageFormat;
+import com.sl.utakephoto.probe.ImageInfo;
+import com.sl.utakephoto.probe.ImageInfoCache;
+import com.sl.utakephoto.probe.ImageProbe;
 import com.sl.utakephoto.utils.PermissionUtils;
 import com.sl.utakephoto.utils.TUriUtils;
+import com.sl.utakephoto.utils.UriOutputStream;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
-import java.util.Locale;
+import java.util.List;
 
 import static android.app.Activity.RESULT_OK;
 
@@ -101,6 +117,25 @@ public class TakePhotoManager implements LifecycleListener {
      * 只有在拍照后，不压缩，不裁剪，返回原图的时候，是否自动旋转
      */
     private boolean rotateCameraPhoto;
+    /**
+     * 旋转方式：解码后旋转像素，重新编码
+     */
+    public static final int ROTATE_PIXELS = 0;
+    /**
+     * 旋转方式：不解码，像素和相机写入的方向标签都原样保留(包括镜像的方向)，
+     * 只有文件里没有方向标签、方向来自MediaStore等其他来源时才把它写进EXIF。非JPEG仍按像素旋转
+     */
+    public static final int ROTATE_METADATA = 1;
+    /**
+     * 旋转方式：JPEG在DCT系数上无损旋转，不经过Bitmap。边缘不完整的MCU会被裁掉(最多16像素)，
+     * 渐进式等不支持的JPEG和其他格式回退为 {@link #ROTATE_PIXELS}
+     */
+    public static final int ROTATE_LOSSLESS = 2;
+    private int rotateMode = ROTATE_PIXELS;
+    /**
+     * 保存原图时的文件名，见{@link FileNameGenerator}
+     */
+    private FileNameGenerator nameGenerator = FileNameGenerator.getDefault();
 
     private Uri outPutUri;
     private Uri tempUri;
@@ -122,6 +157,9 @@ public class TakePhotoManager implements LifecycleListener {
     }
 
     private SaveSourceImgTask saveSourceImgTask;
+    private CompressJob compressJob;
+
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
 
 
     TakePhotoManager(
@@ -199,7 +237,31 @@ public class TakePhotoManager implements LifecycleListener {
      * @return
      */
     public TakePhotoManager setCameraPhotoRotate(boolean rotate) {
+        return setCameraPhotoRotate(rotate, ROTATE_PIXELS);
+    }
+
+    /**
+     * @param rotate true：旋转 false：原图
+     * @param mode   {@link #ROTATE_PIXELS} 旋转像素并重新编码；
+     *               {@link #ROTATE_METADATA} 保证方向在EXIF里，适合只需要查看器正确显示的场景，耗时为毫秒级且无损；
+     *               {@link #ROTATE_LOSSLESS} 像素真正旋转但不重新编码，适合不识别EXIF方向的使用方
+     * @return
+     */
+    public TakePhotoManager setCameraPhotoRotate(boolean rotate, int mode) {
         this.rotateCameraPhoto = rotate;
+        this.rotateMode = mode;
+        return this;
+    }
+
+    /**
+     * 设置保存原图(relativePath)时的文件名模板，默认"{time}_{seq}"，
+     * 可以使用{time}、{date}、{seq}，不含{seq}时自动加上，保证连拍时不重名
+     *
+     * @param template 文件名模板，不含后缀
+     * @return
+     */
+    public TakePhotoManager setFileNameTemplate(String template) {
+        this.nameGenerator = new FileNameGenerator(template);
         return this;
     }
 
@@ -302,6 +364,10 @@ public class TakePhotoManager implements LifecycleListener {
         if (saveSourceImgTask != null) {
             saveSourceImgTask.cancel(true);
         }
+        if (compressJob != null) {
+            compressJob.cancel();
+            compressJob = null;
+        }
     }
 
     @Override
@@ -371,64 +437,44 @@ public class TakePhotoManager implements LifecycleListener {
      */
     private Uri preserveOriginalImag(Uri outPutUri) {
         OutputStream outputStream = null;
-        InputStream inputStream = null;
-        FileOutputStream fos = null;
         try {
-            inputStream = mContext.getContentResolver().openInputStream(outPutUri);
+            ImageInfo info = ImageInfoCache.getInstance().get(mContext, outPutUri);
             //拍完照 如果设置的是相对路径，需要把图片储存在relativePath下,否则放到指定uri中
             if (relativePath != null && relativePath.length() != 0) {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                    ContentValues values = new ContentValues();
-                    values.put(MediaStore.Images.Media.MIME_TYPE, ImgUtil.getMimeType(outPutUri));
-                    String timeStamp = new SimpleDateFormat("yyyyMMddHHmmss", Locale.getDefault()).format(new Date());
-                    values.put(MediaStore.Images.Media.DISPLAY_NAME, timeStamp + ImgUtil.extSuffix(outPutUri));
-                    values.put(MediaStore.Images.Media.RELATIVE_PATH, relativePath);
                     String status = Environment.getExternalStorageState();
                     ContentResolver contentResolver = mContext.getContentResolver();
-                    Uri insert;
                     // 判断是否有SD卡,优先使用SD卡存储,当没有SD卡时使用手机存储
-                    if (Environment.MEDIA_MOUNTED.equals(status)) {
-                        insert = contentResolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
-                    } else {
-                        insert = contentResolver.insert(MediaStore.Images.Media.INTERNAL_CONTENT_URI, values);
-                    }
+                    Uri collection = Environment.MEDIA_MOUNTED.equals(status)
+                            ? MediaStore.Images.Media.EXTERNAL_CONTENT_URI : MediaStore.Images.Media.INTERNAL_CONTENT_URI;
+                    ContentValues values = new ContentValues();
+                    //保存的是重新编码的JPEG，不能按原Uri的扩展名猜测
+                    values.put(MediaStore.Images.Media.MIME_TYPE, ImageFormat.JPEG.getMimeType());
+                    values.put(MediaStore.Images.Media.DISPLAY_NAME, nextDisplayName(contentResolver, collection));
+                    values.put(MediaStore.Images.Media.RELATIVE_PATH, relativePath);
+                    Uri insert = contentResolver.insert(collection, values);
                     if (insert != null) {
                         outputStream = contentResolver.openOutputStream(insert);
-                        Bitmap tagBitmap = BitmapFactory.decodeStream(
-                                mContext.getContentResolver().openInputStream(outPutUri));
-                        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-                        if (ImgUtil.JPEG_MIME_TYPE(mContext, outPutUri)) {
-                            tagBitmap = ImgUtil.rotatingImage(tagBitmap, ImgUtil.getMetadataRotation(mContext, outPutUri));
-                        }
-                        tagBitmap.compress(Bitmap.CompressFormat.JPEG, 90, stream);
-                        tagBitmap.recycle();
                         if (outputStream != null) {
-                            outputStream.write(stream.toByteArray());
+                            writeUpright(outPutUri, info, outputStream);
                         }
                         Log.d(TConstant.TAG, "原图路径 :" + insert);
                     }
                     return insert;
 
                 } else {
-                    Bitmap tagBitmap = BitmapFactory.decodeStream(
-                            mContext.getContentResolver().openInputStream(outPutUri));
-                    ByteArrayOutputStream stream = new ByteArrayOutputStream();
-                    if (ImgUtil.JPEG_MIME_TYPE(mContext, outPutUri)) {
-                        //检查角度，旋转
-                        tagBitmap = ImgUtil.rotatingImage(tagBitmap, ImgUtil.getMetadataRotation(mContext, outPutUri));
-                    }
-                    tagBitmap.compress(Bitmap.CompressFormat.JPEG, 90, stream);
-                    tagBitmap.recycle();
-
-                    String timeStamp = new SimpleDateFormat("yyyyMMddHHmmss", Locale.getDefault()).format(new Date());
-                    File outputFile = new File(Environment.getExternalStorageDirectory(),
-                            relativePath + "/" + timeStamp + ImgUtil.extSuffix(outPutUri));
+                    File outputDir = new File(Environment.getExternalStorageDirectory(), relativePath);
+                    File outputFile = nameGenerator.nextFile(outputDir, 0, ImageFormat.JPEG.getSuffix());
                     if (!outputFile.getParentFile().exists())
                         outputFile.getParentFile().mkdirs();
                     Log.d(TConstant.TAG, "原图路径 :" + outputFile.getPath());
-                    fos = new FileOutputStream(outputFile);
-                    fos.write(stream.toByteArray());
                     Uri uri = Uri.fromFile(outputFile);
+                    //先写同目录的临时文件，写完再重命名
+                    UriOutputStream uriOut = UriOutputStream.open(mContext, uri);
+                    outputStream = uriOut;
+                    //检查角度，旋转
+                    writeUpright(outPutUri, info, uriOut);
+                    uriOut.commit();
                     mContext.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, uri));
                     return uri;
                 }
@@ -436,20 +482,11 @@ public class TakePhotoManager implements LifecycleListener {
                 //检查是否需要旋转
 //                BitmapFactory.Options options = new BitmapFactory.Options();
 //                options.inSampleSize = ImgUtil.computeSize(inputStream);
-                if (ImgUtil.JPEG_MIME_TYPE(mContext, outPutUri)) {
-                    int metadataRotation = ImgUtil.getMetadataRotation(mContext, outPutUri);
-                    if (metadataRotation != 0) {
-                        Bitmap tagBitmap = BitmapFactory.decodeStream(mContext.getContentResolver().openInputStream(outPutUri));
-                        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-                        tagBitmap = ImgUtil.rotatingImage(tagBitmap, metadataRotation);
-                        tagBitmap.compress(Bitmap.CompressFormat.JPEG, 90, stream);
-                        tagBitmap.recycle();
-                        outputStream = mContext.getContentResolver().openOutputStream(outPutUri);
-                        if (outputStream != null) {
-                            outputStream.write(stream.toByteArray());
-                        }
-                    }
-
+                //ROTATE_METADATA时只补上文件里缺少的方向标签，相机写入的标签不改写
+                if (info.isJpeg() && info.getOrientation() != 0
+                        && (rotateMode != ROTATE_METADATA || !hasExifOrientation(outPutUri, info))) {
+                    rewriteInPlace(outPutUri, info);
+                    ImageInfoCache.getInstance().invalidate(outPutUri);
                 }
 
                 return outPutUri;
@@ -462,14 +499,190 @@ public class TakePhotoManager implements LifecycleListener {
             e.printStackTrace();
         } catch (NullPointerException e) {
             e.printStackTrace();
+        } catch (OutOfMemoryError e) {
+            //保存原图失败时返回拍照的Uri，不让AsyncTask崩溃
+            e.printStackTrace();
         } finally {
-            close(fos);
             close(outputStream);
-            close(inputStream);
         }
         return outPutUri;
     }
 
+    /**
+     * relativePath下还没有使用的文件名。序号在进程重启后从头开始，已存在时递增序号，
+     * 否则MediaStore会在重名的文件名后面加" (1)"
+     */
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private String nextDisplayName(ContentResolver resolver, Uri collection) {
+        String directory = relativePath.endsWith("/") ? relativePath : relativePath + "/";
+        String name;
+        do {
+            name = nameGenerator.next(ImageFormat.JPEG.getSuffix());
+        } while (displayNameExists(resolver, collection, directory, name));
+        return name;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private static boolean displayNameExists(ContentResolver resolver, Uri collection, String directory, String name) {
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(collection, new String[]{MediaStore.Images.Media._ID},
+                    MediaStore.Images.Media.RELATIVE_PATH + "=? AND " + MediaStore.Images.Media.DISPLAY_NAME + "=?",
+                    new String[]{directory, name}, null);
+            return cursor != null && cursor.getCount() > 0;
+        } catch (RuntimeException e) {
+            Log.w(TConstant.TAG, "cannot query " + name + " in " + directory, e);
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * @return 文件里已经有EXIF方向标签，信息来自MediaStore时重新读取文件
+     */
+    private boolean hasExifOrientation(Uri uri, ImageInfo info) throws IOException {
+        int exifOrientation = info.getExifOrientation();
+        if (exifOrientation == ImageInfo.EXIF_UNKNOWN) {
+            exifOrientation = ImageProbe.readExifOrientation(mContext, uri);
+        }
+        return exifOrientation != 0;
+    }
+
+    /**
+     * 把原图摆正后写入out：{@link #ROTATE_METADATA} 时JPEG直接拷贝，只补上缺少的EXIF方向，
+     * {@link #ROTATE_LOSSLESS} 时JPEG无损旋转，否则解码旋转后重新编码。
+     * 无损旋转会把方向重置为1，镜像方向的JPEG改为原样拷贝，保留相机的方向标签
+     */
+    private void writeUpright(Uri uri, ImageInfo info, OutputStream out) throws IOException {
+        MemoryBudget budget = MemoryBudget.getInstance(mContext);
+        //DCT系数整张放在内存里，超过解码预算时按像素旋转
+        long cost = info.hasBounds() ? JpegTransform.estimateMemory(info.getWidth(), info.getHeight()) : Long.MAX_VALUE;
+        if (rotateMode == ROTATE_LOSSLESS && info.isJpeg() && !info.isMirrored() && cost <= budget.getBudget()) {
+            InputStream inputStream = mContext.getContentResolver().openInputStream(uri);
+            if (inputStream == null) {
+                throw new FileNotFoundException("cannot open " + uri);
+            }
+            PooledBufferedOutputStream buffered = new PooledBufferedOutputStream(out, COPY_BUFFER_SIZE);
+            budget.acquire(cost);
+            try {
+                if (JpegTransform.rotate(inputStream, buffered, info.getOrientation(), true)) {
+                    buffered.flush();
+                    return;
+                }
+            } catch (Exception e) {
+                //截断或者损坏的JPEG在解码阶段失败，还没有写入任何数据
+                Log.w(TConstant.TAG, "lossless rotation failed, rotating pixels", e);
+            } finally {
+                budget.release(cost);
+                buffered.release();
+                close(inputStream);
+            }
+            //渐进式等不支持无损变换的JPEG，没有写入任何数据，按像素旋转
+        } else if (info.isJpeg() && (rotateMode == ROTATE_METADATA
+                || (rotateMode == ROTATE_LOSSLESS && info.isMirrored()))) {
+            InputStream inputStream = mContext.getContentResolver().openInputStream(uri);
+            if (inputStream == null) {
+                throw new FileNotFoundException("cannot open " + uri);
+            }
+            PooledBufferedOutputStream buffered = new PooledBufferedOutputStream(out, COPY_BUFFER_SIZE);
+            try {
+                ExifOrientationWriter.write(new BufferedInputStream(inputStream, COPY_BUFFER_SIZE), buffered,
+                        info.getOrientation(), false);
+                buffered.flush();
+            } finally {
+                buffered.release();
+                close(inputStream);
+            }
+            return;
+        }
+        LruBitmapPool pool = LruBitmapPool.getInstance(mContext);
+        Bitmap tagBitmap = decodeUpright(uri, info, pool);
+        try {
+            //直接编码到输出流，不经过ByteArrayOutputStream
+            PooledBufferedOutputStream buffered = out instanceof BufferedOutputStream ? null
+                    : new PooledBufferedOutputStream(out, COPY_BUFFER_SIZE);
+            OutputStream target = buffered != null ? buffered : out;
+            try {
+                tagBitmap.compress(Bitmap.CompressFormat.JPEG, 90, target);
+                target.flush();
+            } finally {
+                if (buffered != null) {
+                    buffered.release();
+                }
+            }
+        } finally {
+            pool.put(tagBitmap);
+        }
+    }
+
+    /**
+     * 原Uri上摆正图片：file的Uri写到同目录的临时文件后重命名，
+     * 其他Uri不能同时读写，先写到缓存目录的临时文件，再拷回原Uri
+     */
+    private void rewriteInPlace(Uri uri, ImageInfo info) throws IOException {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            UriOutputStream out = UriOutputStream.open(mContext, uri);
+            try {
+                writeUpright(uri, info, out);
+                out.commit();
+            } finally {
+                close(out);
+            }
+            return;
+        }
+        File temp = File.createTempFile("upright", ImageFormat.JPEG.getSuffix(), mContext.getCacheDir());
+        FileOutputStream tempOut = null;
+        InputStream tempIn = null;
+        OutputStream out = null;
+        try {
+            tempOut = new FileOutputStream(temp);
+            writeUpright(uri, info, tempOut);
+            tempOut.close();
+            tempOut = null;
+            tempIn = new FileInputStream(temp);
+            out = mContext.getContentResolver().openOutputStream(uri);
+            if (out == null) {
+                throw new FileNotFoundException("cannot write " + uri);
+            }
+            LruArrayPool arrayPool = LruArrayPool.getInstance();
+            byte[] buffer = arrayPool.get(COPY_BUFFER_SIZE);
+            try {
+                int read;
+                while ((read = tempIn.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                arrayPool.put(buffer);
+            }
+        } finally {
+            close(tempOut);
+            close(tempIn);
+            close(out);
+            if (!temp.delete()) {
+                temp.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * 解码原图，JPEG按EXIF方向旋转，解码和旋转的Bitmap都从池里复用
+     */
+    private Bitmap decodeUpright(Uri uri, ImageInfo info, LruBitmapPool pool) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        Bitmap tagBitmap = ImgUtil.decode(mContext, uri, options,
+                MemoryBudget.estimate(info.getWidth(), info.getHeight(), options), pool);
+        if (tagBitmap == null) {
+            throw new IOException("cannot decode " + uri);
+        }
+        if (info.isJpeg()) {
+            tagBitmap = ImgUtil.rotatingImage(tagBitmap, info.getOrientation(), pool);
+        }
+        return tagBitmap;
+    }
+
     private void close(Closeable fos) {
         if (fos != null) {
             try {
@@ -492,12 +705,17 @@ public class TakePhotoManager implements LifecycleListener {
 
     private void compress(final Uri outPutUri) {
 
-        CompressImageImpl.of(mContext, compressConfig, Collections.singletonList(outPutUri), new CompressImage.CompressListener() {
+        compressJob = CompressImageImpl.of(mContext, compressConfig, Collections.singletonList(outPutUri), new CompressImage.CompressProgressListener() {
             @Override
             public void onStart() {
 
             }
 
+            @Override
+            public void onProgress(int index, int total, int stage) {
+
+            }
+
             @Override
             public void onSuccess(Uri images) {
                 if (takePhotoResult != null) {
@@ -506,6 +724,11 @@ public class TakePhotoManager implements LifecycleListener {
                 }
             }
 
+            @Override
+            public void onResult(CompressResult result) {
+                Log.d(TConstant.TAG, "压缩结果：" + result);
+            }
+
             @Override
             public void onError(Throwable obj) {
                 obj.printStackTrace();
@@ -518,6 +741,11 @@ public class TakePhotoManager implements LifecycleListener {
                     }
                 }
             }
+
+            @Override
+            public void onComplete(List<CompressResult> results) {
+                compressJob = null;
+            }
         }).compress();
 
     }
@@ -638,6 +866,8 @@ public class TakePhotoManager implements LifecycleListener {
             Intent cropIntent = new Intent();
             cropIntent.setData(takePhotoUri);
             cropIntent.putExtra(MediaStore.EXTRA_OUTPUT, tempUri);
+            cropIntent.putExtra(CropExtras.KEY_LOSSLESS, cropOptions.isLossless());
+            cropIntent.putExtra(CropExtras.KEY_DECODE_POLICY, cropOptions.getDecodePolicy().name());
             if (cropOptions.getAspectX() * cropOptions.getAspectY() > 0) {
                 cropIntent.putExtra(CropExtras.KEY_ASPECT_X, cropOptions.getAspectX());
                 cropIntent.putExtra(CropExtras.KEY_ASPECT_Y, cropOptions.getAspectY());
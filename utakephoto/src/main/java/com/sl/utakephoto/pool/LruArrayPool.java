@@ -0,0 +1,136 @@
+package com.sl.utakephoto.pool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按大小复用byte[]的LRU池，总字节数有上限。
+ * 申请的大小向上取整到2的幂，拷贝缓冲区、编码输出缓冲区在批量处理时反复使用同几个数组，不再每次都分配。
+ * 放回池里的数组内容不会清空，取出后只能当作未初始化的缓冲区使用
+ */
+public final class LruArrayPool {
+    /**
+     * 池里最多保留的字节数
+     */
+    public static final int MAX_SIZE = 8 * 1024 * 1024;
+    /**
+     * 最小的数组大小
+     */
+    private static final int MIN_ARRAY_SIZE = 4 * 1024;
+    /**
+     * 复用的数组最多比需要的大这么多倍
+     */
+    private static final int MAX_OVER_SIZE_MULTIPLE = 8;
+
+    private static volatile LruArrayPool instance;
+
+    /**
+     * 按最近放入的顺序，头部最旧
+     */
+    private final List<byte[]> arrays = new ArrayList<>();
+    private final int maxSize;
+    private int currentSize;
+    private int hitCount;
+    private int missCount;
+    private int evictionCount;
+
+    public static LruArrayPool getInstance() {
+        if (instance == null) {
+            synchronized (LruArrayPool.class) {
+                if (instance == null) {
+                    instance = new LruArrayPool(MAX_SIZE);
+                }
+            }
+        }
+        return instance;
+    }
+
+    LruArrayPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return 长度不小于size的数组，内容是上次使用留下的
+     */
+    public byte[] get(int size) {
+        byte[] array = take(size);
+        if (array == null) {
+            return new byte[sizeClass(size)];
+        }
+        return array;
+    }
+
+    private synchronized byte[] take(int size) {
+        byte[] best = null;
+        long limit = (long) Math.max(size, MIN_ARRAY_SIZE) * MAX_OVER_SIZE_MULTIPLE;
+        for (byte[] array : arrays) {
+            if (array.length >= size && array.length <= limit && (best == null || array.length < best.length)) {
+                best = array;
+            }
+        }
+        if (best == null) {
+            missCount++;
+            return null;
+        }
+        arrays.remove(best);
+        currentSize -= best.length;
+        hitCount++;
+        return best;
+    }
+
+    /**
+     * 用完的数组放回池里，放回后调用方不能再使用它
+     */
+    public synchronized void put(byte[] array) {
+        if (array == null || array.length < MIN_ARRAY_SIZE || array.length > maxSize / 2) {
+            return;
+        }
+        arrays.add(array);
+        currentSize += array.length;
+        trimToSize(maxSize);
+    }
+
+    private void trimToSize(int size) {
+        while (currentSize > size && !arrays.isEmpty()) {
+            currentSize -= arrays.remove(0).length;
+            evictionCount++;
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * 内存紧张时由{@link LruBitmapPool}一起清理
+     */
+    synchronized void trimToHalf() {
+        trimToSize(currentSize / 2);
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= MIN_ARRAY_SIZE) {
+            return MIN_ARRAY_SIZE;
+        }
+        int highest = Integer.highestOneBit(size);
+        return highest == size || highest >= (1 << 30) ? size : highest << 1;
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int getCurrentSize() {
+        return currentSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LruArrayPool{size=" + currentSize + "/" + maxSize + ", arrays=" + arrays.size()
+                + ", hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount + '}';
+    }
+}
@@ -0,0 +1,257 @@
+package com.sl.utakephoto.pool;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Build;
+import android.util.Log;
+
+import com.sl.utakephoto.utils.MemoryBudget;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.sl.utakephoto.utils.TConstant.TAG;
+
+/**
+ * 按大小和Bitmap.Config复用Bitmap的LRU池，总字节数有上限。
+ * 解码时通过inBitmap复用空闲的Bitmap，旋转、缩放的目标Bitmap也从池里取，批量处理时不再反复分配大块内存导致GC和堆碎片。
+ * KitKat以上只要字节数足够就可以复用并reconfigure，KitKat以下只有宽高和Config完全一致才能复用，解码不使用池。
+ * 系统onTrimMemory时清空，{@link LruArrayPool}也一起清理
+ */
+public final class LruBitmapPool implements ComponentCallbacks2 {
+    /**
+     * 池最多占堆上限的比例
+     */
+    private static final int MAX_SIZE_DIVISOR = 8;
+    /**
+     * 复用的Bitmap最多比需要的大这么多倍，避免用很大的Bitmap装很小的图
+     */
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private static volatile LruBitmapPool instance;
+
+    /**
+     * 按最近放入的顺序，头部最旧
+     */
+    private final List<Bitmap> bitmaps = new ArrayList<>();
+    private final long maxSize;
+    private long currentSize;
+    private int hitCount;
+    private int missCount;
+    private int putCount;
+    private int evictionCount;
+    private long reusedBytes;
+
+    public static LruBitmapPool getInstance(Context context) {
+        if (instance == null) {
+            synchronized (LruBitmapPool.class) {
+                if (instance == null) {
+                    instance = new LruBitmapPool(Runtime.getRuntime().maxMemory() / MAX_SIZE_DIVISOR);
+                    if (context != null) {
+                        context.getApplicationContext().registerComponentCallbacks(instance);
+                    }
+                }
+            }
+        }
+        return instance;
+    }
+
+    LruBitmapPool(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 用完的Bitmap放回池里，不能复用或放不下时直接recycle。放入后调用方不能再使用它
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        long size = byteCountOf(bitmap);
+        if (!bitmap.isMutable() || bitmap.getConfig() == null || size > maxSize) {
+            bitmap.recycle();
+            return;
+        }
+        bitmaps.add(bitmap);
+        currentSize += size;
+        putCount++;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * 取一个宽高和Config都符合、内容已清空的Bitmap，作为绘制的目标
+     *
+     * @return 没有可用的Bitmap时新建一个
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take(width, height, config);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * 解码前调用：有足够大的空闲Bitmap时设置为inBitmap，解码器会直接解码到它上面
+     *
+     * @param byteCount 解码结果的字节数上限，见{@link com.sl.utakephoto.utils.MemoryBudget#estimate}
+     */
+    public void setInBitmap(BitmapFactory.Options options, long byteCount) {
+        options.inMutable = true;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || byteCount <= 0) {
+            return;
+        }
+        synchronized (this) {
+            Bitmap bitmap = removeBestFit(byteCount, null);
+            if (bitmap == null) {
+                missCount++;
+                return;
+            }
+            hitCount++;
+            reusedBytes += byteCountOf(bitmap);
+            options.inBitmap = bitmap;
+        }
+    }
+
+    private synchronized Bitmap take(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            long needed = (long) width * height * MemoryBudget.bytesPerPixel(config);
+            bitmap = removeBestFit(needed, config);
+            if (bitmap != null) {
+                bitmap.reconfigure(width, height, config);
+            }
+        } else {
+            bitmap = removeExact(width, height, config);
+        }
+        if (bitmap == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        reusedBytes += byteCountOf(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * @param config null时不限制Config，解码器会自己reconfigure
+     */
+    private Bitmap removeBestFit(long needed, Bitmap.Config config) {
+        Bitmap best = null;
+        long bestSize = Long.MAX_VALUE;
+        for (Bitmap bitmap : bitmaps) {
+            long size = byteCountOf(bitmap);
+            if (size >= needed && size <= needed * MAX_SIZE_MULTIPLE && size < bestSize
+                    && (config == null || bitmap.getConfig() == config)) {
+                best = bitmap;
+                bestSize = size;
+            }
+        }
+        if (best != null) {
+            bitmaps.remove(best);
+            currentSize -= bestSize;
+        }
+        return best;
+    }
+
+    private Bitmap removeExact(int width, int height, Bitmap.Config config) {
+        Iterator<Bitmap> iterator = bitmaps.iterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+                iterator.remove();
+                currentSize -= byteCountOf(bitmap);
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    private void trimToSize(long size) {
+        while (currentSize > size && !bitmaps.isEmpty()) {
+            Bitmap eldest = bitmaps.remove(0);
+            currentSize -= byteCountOf(eldest);
+            eldest.recycle();
+            evictionCount++;
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+            LruArrayPool.getInstance().clear();
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW) {
+            synchronized (this) {
+                trimToSize(currentSize / 2);
+            }
+            LruArrayPool.getInstance().trimToHalf();
+        }
+        Log.d(TAG, "trim bitmap pool, level " + level + ": " + this);
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+        LruArrayPool.getInstance().clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return 命中率，没有请求过时为0
+     */
+    public synchronized float getHitRate() {
+        int requests = hitCount + missCount;
+        return requests == 0 ? 0 : (float) hitCount / requests;
+    }
+
+    /**
+     * @return 复用的Bitmap累计字节数，也就是少分配的内存
+     */
+    public synchronized long getReusedBytes() {
+        return reusedBytes;
+    }
+
+    public synchronized long getCurrentSize() {
+        return currentSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LruBitmapPool{size=" + currentSize + "/" + maxSize + ", bitmaps=" + bitmaps.size()
+                + ", hits=" + hitCount + ", misses=" + missCount + ", puts=" + putCount
+                + ", evictions=" + evictionCount + ", reusedBytes=" + reusedBytes + '}';
+    }
+
+    private static long byteCountOf(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+}
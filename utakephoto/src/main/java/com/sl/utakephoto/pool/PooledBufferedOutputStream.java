@@ -0,0 +1,45 @@
+package com.sl.utakephoto.pool;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 缓冲区从{@link LruArrayPool}取的BufferedOutputStream，close或{@link #release()}时归还。
+ * 只flush不close底层流的地方(比如裁剪写到调用方打开的流)，flush后调用release
+ */
+public class PooledBufferedOutputStream extends BufferedOutputStream {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final LruArrayPool pool;
+
+    public PooledBufferedOutputStream(OutputStream out, int size) {
+        this(out, size, LruArrayPool.getInstance());
+    }
+
+    public PooledBufferedOutputStream(OutputStream out, int size, LruArrayPool pool) {
+        super(out, 1);
+        this.pool = pool;
+        buf = pool.get(size);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * 把缓冲区还给池，没有flush的数据会丢失。之后不能再写
+     */
+    public synchronized void release() {
+        if (buf != EMPTY) {
+            pool.put(buf);
+            buf = EMPTY;
+            count = 0;
+        }
+    }
+}
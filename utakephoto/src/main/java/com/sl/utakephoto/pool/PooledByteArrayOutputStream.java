@@ -0,0 +1,59 @@
+package com.sl.utakephoto.pool;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * 缓冲区从{@link LruArrayPool}取的ByteArrayOutputStream，扩容时换一个更大的池化数组，旧的放回池里。
+ * 用完调用{@link #release()}归还缓冲区，之后还可以继续写，会重新从池里取
+ */
+public final class PooledByteArrayOutputStream extends ByteArrayOutputStream {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final LruArrayPool pool;
+
+    public PooledByteArrayOutputStream(LruArrayPool pool, int initialSize) {
+        super(0);
+        this.pool = pool;
+        buf = pool.get(initialSize);
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        ensureCapacity(count + 1);
+        super.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        if (len > 0) {
+            ensureCapacity(count + len);
+        }
+        super.write(b, off, len);
+    }
+
+    /**
+     * 在父类自己扩容之前换成池里的数组，父类就不会再分配
+     */
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity < 0) {
+            throw new OutOfMemoryError();
+        }
+        if (minCapacity <= buf.length) {
+            return;
+        }
+        int newCapacity = Math.max(minCapacity, buf.length << 1);
+        byte[] bigger = pool.get(newCapacity < 0 ? minCapacity : newCapacity);
+        System.arraycopy(buf, 0, bigger, 0, count);
+        pool.put(buf);
+        buf = bigger;
+    }
+
+    /**
+     * 清空内容并把缓冲区还给池
+     */
+    public synchronized void release() {
+        pool.put(buf);
+        buf = EMPTY;
+        count = 0;
+    }
+}
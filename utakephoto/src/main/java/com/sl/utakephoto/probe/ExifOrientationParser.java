@@ -0,0 +1,211 @@
+package com.sl.utakephoto.probe;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 流式读取JPEG的EXIF方向，只读取APP1/IFD0（最多64KB），遇到SOS即停止。
+ * 不依赖Android API，可以直接在JVM上测试。
+ */
+public final class ExifOrientationParser {
+
+    /**
+     * APP1段最多读取的字节数，IFD0一定在TIFF头后面很近的位置
+     */
+    static final int MAX_EXIF_LENGTH = 64 * 1024;
+
+    static final int MARKER_SOI = 0xD8;
+    static final int MARKER_EOI = 0xD9;
+    static final int MARKER_SOS = 0xDA;
+    static final int MARKER_APP1 = 0xE1;
+    static final int MARKER_TEM = 0x01;
+
+    static final int EXIF_MAGIC = 0x45786966;
+    static final int TAG_ORIENTATION = 0x0112;
+
+    private ExifOrientationParser() {
+    }
+
+    /**
+     * 返回顺时针角度，0、90、180或270。流停在头部中的某个位置，不关闭
+     */
+    public static int getOrientation(InputStream is) throws IOException {
+        return toDegrees(getExifOrientation(is));
+    }
+
+    /**
+     * 返回EXIF方向标签的原始值1-8，没有标签时返回0。流停在头部中的某个位置，不关闭
+     */
+    public static int getExifOrientation(InputStream is) throws IOException {
+        if (is == null) {
+            return 0;
+        }
+        if (is.read() != 0xFF || is.read() != MARKER_SOI) {
+            return 0;
+        }
+        // ISO/IEC 10918-1:1993(E)
+        while (true) {
+            int marker = nextMarker(is);
+            if (marker == -1 || marker == MARKER_EOI || marker == MARKER_SOS) {
+                return 0;
+            }
+            //没有长度字段的标记
+            if (marker == MARKER_SOI || marker == MARKER_TEM || (marker >= 0xD0 && marker <= 0xD7)) {
+                continue;
+            }
+            int length = readUnsignedShort(is);
+            if (length < 2) {
+                return 0;
+            }
+            length -= 2;
+            if (marker == MARKER_APP1 && length >= 8) {
+                byte[] segment = new byte[Math.min(length, MAX_EXIF_LENGTH)];
+                readFully(is, segment, 0, segment.length);
+                if (pack(segment, 0, 4, false) == EXIF_MAGIC && pack(segment, 4, 2, false) == 0) {
+                    return parseTiffExifOrientation(segment, 6, segment.length - 6);
+                }
+                skipFully(is, length - segment.length);
+            } else {
+                skipFully(is, length);
+            }
+        }
+    }
+
+    /**
+     * 在TIFF结构的IFD0中查找方向标签，见JEITA CP-3451 Exif Version 2.2
+     *
+     * @return 方向标签的原始值1-8，没有标签或值不合法时为0
+     */
+    static int parseTiffExifOrientation(byte[] tiff, int offset, int length) {
+        int entry = findIfd0Entry(tiff, offset, length, TAG_ORIENTATION);
+        if (entry < 0) {
+            return 0;
+        }
+        boolean littleEndian = isLittleEndian(tiff, offset);
+        int value = pack(tiff, entry + 8, 2, littleEndian);
+        return value >= 1 && value <= 8 ? value : 0;
+    }
+
+    /**
+     * @return tag在IFD0中12字节条目的绝对偏移，没有时为-1
+     */
+    static int findIfd0Entry(byte[] tiff, int offset, int length, int tag) {
+        if (length < 8) {
+            return -1;
+        }
+        //判断字节序
+        int order = pack(tiff, offset, 4, false);
+        if (order != 0x49492A00 && order != 0x4D4D002A) {
+            return -1;
+        }
+        boolean littleEndian = (order == 0x49492A00);
+
+        //取IFD0偏移并检查是否合理
+        int ifd = pack(tiff, offset + 4, 4, littleEndian);
+        if (ifd < 8 || ifd + 2 > length) {
+            return -1;
+        }
+        int count = pack(tiff, offset + ifd, 2, littleEndian);
+        int entry = offset + ifd + 2;
+        int end = offset + length;
+        while (count-- > 0 && entry + 12 <= end) {
+            if (pack(tiff, entry, 2, littleEndian) == tag) {
+                return entry;
+            }
+            entry += 12;
+        }
+        return -1;
+    }
+
+    static boolean isLittleEndian(byte[] tiff, int offset) {
+        return tiff[offset] == 0x49;
+    }
+
+    /**
+     * @return 方向带水平或垂直翻转，{@link #toDegrees}只保留了其中的旋转
+     */
+    static boolean isMirrored(int exifOrientation) {
+        return exifOrientation == 2 || exifOrientation == 4 || exifOrientation == 5 || exifOrientation == 7;
+    }
+
+    /**
+     * @return 顺时针角度，镜像的方向按0处理
+     */
+    static int toDegrees(int exifOrientation) {
+        switch (exifOrientation) {
+            case 3:
+                return 180;
+            case 6:
+                return 90;
+            case 8:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * 跳过填充字节返回下一个标记，流结束时返回-1
+     */
+    static int nextMarker(InputStream is) throws IOException {
+        int b = is.read();
+        //和原来基于数组的解析一样，容忍段之间的垃圾数据
+        while (b != -1 && b != 0xFF) {
+            b = is.read();
+        }
+        while (b == 0xFF) {
+            b = is.read();
+        }
+        return b;
+    }
+
+    static int readUnsignedShort(InputStream is) throws IOException {
+        int hi = is.read();
+        int lo = is.read();
+        if ((hi | lo) < 0) {
+            throw new EOFException();
+        }
+        return (hi << 8) | lo;
+    }
+
+    static void readFully(InputStream is, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = is.read(buffer, offset, length);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+
+    static void skipFully(InputStream is, long length) throws IOException {
+        while (length > 0) {
+            long skipped = is.skip(length);
+            if (skipped <= 0) {
+                //有些content流skip()返回0，改为读取
+                if (is.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    static int pack(byte[] bytes, int offset, int length, boolean littleEndian) {
+        int step = 1;
+        if (littleEndian) {
+            offset += length - 1;
+            step = -1;
+        }
+
+        int value = 0;
+        while (length-- > 0) {
+            value = (value << 8) | (bytes[offset] & 0xFF);
+            offset += step;
+        }
+        return value;
+    }
+}
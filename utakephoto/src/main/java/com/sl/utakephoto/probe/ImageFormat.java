@@ -0,0 +1,198 @@
+package com.sl.utakephoto.probe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * 根据文件头的魔数判断图片格式，最多读取{@link #HEADER_LENGTH}个字节
+ */
+public enum ImageFormat {
+    JPEG("image/jpeg", ".jpg"),
+    PNG("image/png", ".png"),
+    GIF("image/gif", ".gif"),
+    BMP("image/bmp", ".bmp"),
+    WEBP_LOSSY("image/webp", ".webp"),
+    WEBP_LOSSLESS("image/webp", ".webp"),
+    WEBP_EXTENDED("image/webp", ".webp"),
+    HEIF("image/heif", ".heic"),
+    AVIF("image/avif", ".avif"),
+    UNKNOWN(null, ".jpg");
+
+    public static final int HEADER_LENGTH = 32;
+
+    private final String mimeType;
+    private final String suffix;
+
+    ImageFormat(String mimeType, String suffix) {
+        this.mimeType = mimeType;
+        this.suffix = suffix;
+    }
+
+    /**
+     * @return mime type，{@link #UNKNOWN}时为null
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return 带点的文件后缀，{@link #UNKNOWN}时为".jpg"
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+
+    public boolean isWebp() {
+        return this == WEBP_LOSSY || this == WEBP_LOSSLESS || this == WEBP_EXTENDED;
+    }
+
+    /**
+     * 格式是否可能带透明通道
+     */
+    public boolean supportsAlpha() {
+        return this == PNG || this == GIF || this == WEBP_LOSSLESS || this == WEBP_EXTENDED
+                || this == HEIF || this == AVIF || this == BMP;
+    }
+
+    /**
+     * 根据provider报告的mime type得到格式。没有文件头时分不清WebP的种类，
+     * 按可能带透明的{@link #WEBP_EXTENDED}处理
+     */
+    public static ImageFormat fromMimeType(String mimeType) {
+        if (mimeType == null) {
+            return UNKNOWN;
+        }
+        mimeType = mimeType.toLowerCase(Locale.US);
+        if (mimeType.equals("image/webp")) {
+            return WEBP_EXTENDED;
+        }
+        if (mimeType.equals("image/jpg")) {
+            return JPEG;
+        }
+        if (mimeType.equals("image/heic") || mimeType.equals("image/heic-sequence")
+                || mimeType.equals("image/heif-sequence")) {
+            return HEIF;
+        }
+        for (ImageFormat format : values()) {
+            if (mimeType.equals(format.mimeType)) {
+                return format;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * 最多读取{@link #HEADER_LENGTH}个字节，不关闭流
+     */
+    public static ImageFormat sniff(InputStream is) throws IOException {
+        if (is == null) {
+            return UNKNOWN;
+        }
+        byte[] header = new byte[HEADER_LENGTH];
+        int length = 0;
+        while (length < header.length) {
+            int read = is.read(header, length, header.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return sniff(header, length);
+    }
+
+    public static ImageFormat sniff(byte[] header, int length) {
+        if (header == null || length < 3) {
+            return UNKNOWN;
+        }
+        length = Math.min(length, header.length);
+        if (u8(header, 0) == 0xFF && u8(header, 1) == 0xD8 && u8(header, 2) == 0xFF) {
+            return JPEG;
+        }
+        if (length >= 8 && u32(header, 0) == 0x89504E47L && u32(header, 4) == 0x0D0A1A0AL) {
+            return PNG;
+        }
+        if (length >= 6 && matches(header, 0, "GIF8") && (header[4] == '7' || header[4] == '9')
+                && header[5] == 'a') {
+            return GIF;
+        }
+        if (length >= 16 && matches(header, 0, "RIFF") && matches(header, 8, "WEBP")) {
+            if (matches(header, 12, "VP8 ")) {
+                return WEBP_LOSSY;
+            } else if (matches(header, 12, "VP8L")) {
+                return WEBP_LOSSLESS;
+            } else if (matches(header, 12, "VP8X")) {
+                return WEBP_EXTENDED;
+            }
+            return UNKNOWN;
+        }
+        if (length >= 14 && header[0] == 'B' && header[1] == 'M') {
+            if (length < 18) {
+                return BMP;
+            }
+            //用DIB头的大小区分真正的BMP和碰巧以"BM"开头的文本
+            long dibSize = u8(header, 14) | (u8(header, 15) << 8) | (u8(header, 16) << 16)
+                    | ((long) u8(header, 17) << 24);
+            if (dibSize == 12 || dibSize == 40 || dibSize == 52 || dibSize == 56
+                    || dibSize == 64 || dibSize == 108 || dibSize == 124) {
+                return BMP;
+            }
+            return UNKNOWN;
+        }
+        if (length >= 12 && matches(header, 4, "ftyp")) {
+            return sniffFtyp(header, length);
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * ISO基础媒体文件格式，按brand区分HEIF和AVIF
+     */
+    private static ImageFormat sniffFtyp(byte[] header, int length) {
+        int boxSize = (int) Math.min(u32(header, 0), length);
+        if (isAvifBrand(header, 8)) {
+            return AVIF;
+        }
+        boolean heif = isHeifBrand(header, 8);
+        //跳过minor version，再检查已读到的兼容brand
+        for (int offset = 16; offset + 4 <= boxSize; offset += 4) {
+            if (isAvifBrand(header, offset)) {
+                return AVIF;
+            }
+            heif |= isHeifBrand(header, offset);
+        }
+        return heif ? HEIF : UNKNOWN;
+    }
+
+    private static boolean isAvifBrand(byte[] header, int offset) {
+        return matches(header, offset, "avif") || matches(header, offset, "avis");
+    }
+
+    private static boolean isHeifBrand(byte[] header, int offset) {
+        return matches(header, offset, "heic") || matches(header, offset, "heix")
+                || matches(header, offset, "hevc") || matches(header, offset, "hevx")
+                || matches(header, offset, "heim") || matches(header, offset, "heis")
+                || matches(header, offset, "mif1") || matches(header, offset, "msf1");
+    }
+
+    private static boolean matches(byte[] header, int offset, String ascii) {
+        if (offset + ascii.length() > header.length) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (header[offset + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int u8(byte[] bytes, int offset) {
+        return bytes[offset] & 0xFF;
+    }
+
+    private static long u32(byte[] bytes, int offset) {
+        return ((long) u8(bytes, offset) << 24) | (u8(bytes, offset + 1) << 16)
+                | (u8(bytes, offset + 2) << 8) | u8(bytes, offset + 3);
+    }
+}
@@ -0,0 +1,149 @@
+package com.sl.utakephoto.probe;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+
+import static com.sl.utakephoto.probe.ExifOrientationParser.EXIF_MAGIC;
+import static com.sl.utakephoto.probe.ExifOrientationParser.MARKER_APP1;
+import static com.sl.utakephoto.probe.ExifOrientationParser.MARKER_EOI;
+import static com.sl.utakephoto.probe.ExifOrientationParser.MARKER_SOI;
+import static com.sl.utakephoto.probe.ExifOrientationParser.MARKER_SOS;
+import static com.sl.utakephoto.probe.ExifOrientationParser.MARKER_TEM;
+import static com.sl.utakephoto.probe.ExifOrientationParser.MAX_EXIF_LENGTH;
+import static com.sl.utakephoto.probe.ExifOrientationParser.nextMarker;
+import static com.sl.utakephoto.probe.ExifOrientationParser.pack;
+import static com.sl.utakephoto.probe.ExifOrientationParser.readFully;
+import static com.sl.utakephoto.probe.ExifOrientationParser.readUnsignedShort;
+import static com.sl.utakephoto.probe.ExifOrientationParser.skipFully;
+
+/**
+ * 只读文件头得到宽高，支持JPEG(SOFn)、PNG(IHDR)、WebP(VP8/VP8L/VP8X)、GIF和BMP，
+ * JPEG同时读取EXIF方向。不依赖BitmapFactory，可以直接在JVM上测试。
+ */
+public final class ImageHeaderParser {
+
+    private ImageHeaderParser() {
+    }
+
+    /**
+     * 解析流的文件头，流停在头部中的某个位置，不关闭
+     *
+     * @return 解析结果，大小为{@link ImageInfo#UNKNOWN_SIZE}，这里不支持的格式(HEIF、AVIF等)宽高为0
+     */
+    public static ImageInfo parse(InputStream is) throws IOException {
+        byte[] header = new byte[ImageFormat.HEADER_LENGTH];
+        int length = 0;
+        while (length < header.length) {
+            int read = is.read(header, length, header.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        ImageFormat format = ImageFormat.sniff(header, length);
+        switch (format) {
+            case JPEG:
+                return parseJpeg(new SequenceInputStream(
+                        new ByteArrayInputStream(header, 2, length - 2), is));
+            case PNG:
+                if (length >= 24) {
+                    return info(format, pack(header, 16, 4, false), pack(header, 20, 4, false), 0);
+                }
+                break;
+            case GIF:
+                if (length >= 10) {
+                    return info(format, pack(header, 6, 2, true), pack(header, 8, 2, true), 0);
+                }
+                break;
+            case BMP:
+                if (length >= 26) {
+                    //自下而上存储的位图高度为负数
+                    return info(format, pack(header, 18, 4, true), Math.abs(pack(header, 22, 4, true)), 0);
+                }
+                break;
+            case WEBP_LOSSY:
+                //14位宽高之前是3字节的帧标记和起始码9d 01 2a
+                if (length >= 30 && (header[23] & 0xFF) == 0x9D && (header[24] & 0xFF) == 0x01
+                        && (header[25] & 0xFF) == 0x2A) {
+                    return info(format, pack(header, 26, 2, true) & 0x3FFF,
+                            pack(header, 28, 2, true) & 0x3FFF, 0);
+                }
+                break;
+            case WEBP_LOSSLESS:
+                if (length >= 25 && (header[20] & 0xFF) == 0x2F) {
+                    int bits = pack(header, 21, 4, true);
+                    return info(format, (bits & 0x3FFF) + 1, ((bits >> 14) & 0x3FFF) + 1, 0);
+                }
+                break;
+            case WEBP_EXTENDED:
+                if (length >= 30) {
+                    return info(format, pack(header, 24, 3, true) + 1, pack(header, 27, 3, true) + 1, 0);
+                }
+                break;
+            default:
+                break;
+        }
+        return info(format, 0, 0, 0);
+    }
+
+    /**
+     * 遍历SOI之后的标记，顺便读取EXIF方向，到第一个SOFn为止
+     */
+    private static ImageInfo parseJpeg(InputStream is) throws IOException {
+        int exifOrientation = 0;
+        while (true) {
+            int marker = nextMarker(is);
+            if (marker == -1 || marker == MARKER_EOI || marker == MARKER_SOS) {
+                return info(ImageFormat.JPEG, 0, 0, exifOrientation);
+            }
+            if (marker == MARKER_SOI || marker == MARKER_TEM || (marker >= 0xD0 && marker <= 0xD7)) {
+                continue;
+            }
+            int length = readUnsignedShort(is) - 2;
+            if (length < 0) {
+                return info(ImageFormat.JPEG, 0, 0, exifOrientation);
+            }
+            if (isStartOfFrame(marker)) {
+                if (length < 5) {
+                    return info(ImageFormat.JPEG, 0, 0, exifOrientation);
+                }
+                byte[] frame = new byte[5];
+                readFully(is, frame, 0, frame.length);
+                int height = pack(frame, 1, 2, false);
+                int width = pack(frame, 3, 2, false);
+                return info(ImageFormat.JPEG, width, height, exifOrientation);
+            }
+            if (marker == MARKER_APP1 && length >= 8) {
+                byte[] segment = new byte[Math.min(length, MAX_EXIF_LENGTH)];
+                readFully(is, segment, 0, segment.length);
+                if (pack(segment, 0, 4, false) == EXIF_MAGIC && pack(segment, 4, 2, false) == 0) {
+                    exifOrientation = ExifOrientationParser.parseTiffExifOrientation(segment, 6, segment.length - 6);
+                }
+                skipFully(is, length - segment.length);
+            } else {
+                skipFully(is, length);
+            }
+        }
+    }
+
+    /**
+     * SOF0-SOF15，不包括DHT(C4)、JPG(C8)和DAC(CC)
+     */
+    static boolean isStartOfFrame(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    /**
+     * @param exifOrientation EXIF方向标签的原始值，没有标签时为0
+     */
+    private static ImageInfo info(ImageFormat format, int width, int height, int exifOrientation) {
+        if (width <= 0 || height <= 0) {
+            width = 0;
+            height = 0;
+        }
+        return new ImageInfo(format, null, width, height, ExifOrientationParser.toDegrees(exifOrientation),
+                exifOrientation, ImageInfo.UNKNOWN_SIZE);
+    }
+}
@@ -0,0 +1,136 @@
+package com.sl.utakephoto.probe;
+
+/**
+ * 一次探测得到的图片信息，不可变
+ */
+public final class ImageInfo {
+    public static final long UNKNOWN_SIZE = -1;
+    /**
+     * 没有从文件读取EXIF方向标签，比如信息来自MediaStore
+     */
+    public static final int EXIF_UNKNOWN = -1;
+
+    private final ImageFormat format;
+    private final String mimeType;
+    private final int width;
+    private final int height;
+    private final int orientation;
+    private final int exifOrientation;
+    private final long size;
+
+    public ImageInfo(ImageFormat format, String mimeType, int width, int height, int orientation, long size) {
+        this(format, mimeType, width, height, orientation, EXIF_UNKNOWN, size);
+    }
+
+    /**
+     * @param exifOrientation 文件里EXIF方向标签的原始值1-8，没有标签时为0，没有读取时为{@link #EXIF_UNKNOWN}
+     */
+    public ImageInfo(ImageFormat format, String mimeType, int width, int height, int orientation,
+                     int exifOrientation, long size) {
+        this.format = format == null ? ImageFormat.UNKNOWN : format;
+        this.mimeType = this.format.getMimeType() != null ? this.format.getMimeType() : mimeType;
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+        this.exifOrientation = exifOrientation;
+        this.size = size;
+    }
+
+    /**
+     * @return 根据内容开头的魔数判断的格式
+     */
+    public ImageFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return 判断出的mime type，内容不是能解码的图片时为null
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public boolean isJpeg() {
+        return format == ImageFormat.JPEG;
+    }
+
+    /**
+     * 存储的宽度，不考虑方向
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * 存储的高度，不考虑方向
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return 顺时针旋转角度，0、90、180或270
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * @return EXIF方向标签的原始值1-8，文件里没有标签时为0，没有从文件读取时为{@link #EXIF_UNKNOWN}
+     */
+    public int getExifOrientation() {
+        return exifOrientation;
+    }
+
+    /**
+     * @return EXIF方向带镜像(2、4、5、7)，只用角度表示不了，不能按{@link #getOrientation()}改写方向
+     */
+    public boolean isMirrored() {
+        return ExifOrientationParser.isMirrored(exifOrientation);
+    }
+
+    /**
+     * @return 源的字节数，provider不提供时为{@link #UNKNOWN_SIZE}
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return 使用其他来源(比如OpenableColumns.SIZE)字节数的副本
+     */
+    ImageInfo withSize(long size) {
+        return size == this.size ? this : new ImageInfo(format, mimeType, width, height, orientation, exifOrientation, size);
+    }
+
+    /**
+     * 按EXIF方向旋转后的宽度
+     */
+    public int getRotatedWidth() {
+        return orientation % 180 == 0 ? width : height;
+    }
+
+    /**
+     * 按EXIF方向旋转后的高度
+     */
+    public int getRotatedHeight() {
+        return orientation % 180 == 0 ? height : width;
+    }
+
+    public boolean hasBounds() {
+        return width > 0 && height > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageInfo{" +
+                "format=" + format +
+                ", mimeType='" + mimeType + '\'' +
+                ", width=" + width +
+                ", height=" + height +
+                ", orientation=" + orientation +
+                ", exifOrientation=" + exifOrientation +
+                ", size=" + size +
+                '}';
+    }
+}
@@ -0,0 +1,118 @@
+package com.sl.utakephoto.probe;
+
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 进程内的图片信息LRU缓存，key为(Uri, 大小, 修改时间)，文件变化后自动失效。
+ * 拿不到修改时间的Uri每次都重新探测，见{@link UriStat#isKnown()}。
+ * 拍照→裁剪→压缩的流程中同一张图只探测一次
+ */
+public final class ImageInfoCache {
+    private static final int DEFAULT_MAX_ENTRIES = 64;
+
+    private static final ImageInfoCache INSTANCE = new ImageInfoCache(DEFAULT_MAX_ENTRIES);
+
+    private final LinkedHashMap<Uri, Entry> entries;
+    private final int maxEntries;
+    private int hitCount;
+    private int missCount;
+    private int evictionCount;
+
+    ImageInfoCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<Uri, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Uri, Entry> eldest) {
+                if (size() > ImageInfoCache.this.maxEntries) {
+                    evictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static ImageInfoCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 源没有变化时返回缓存的信息，否则重新探测
+     */
+    public ImageInfo get(Context context, Uri uri) throws IOException {
+        UriStat stat = UriStat.of(context, uri);
+        if (stat.isKnown()) {
+            synchronized (this) {
+                Entry entry = entries.get(uri);
+                if (entry != null && entry.stat.equals(stat)) {
+                    hitCount++;
+                    return entry.info;
+                }
+                missCount++;
+            }
+        } else {
+            synchronized (this) {
+                missCount++;
+            }
+        }
+        ImageInfo info = ImageProbe.probe(context, uri);
+        if (info.getSize() == ImageInfo.UNKNOWN_SIZE && stat.getLength() != UriStat.UNKNOWN) {
+            //有些provider给的是管道，stat没有大小，SIZE列仍然有
+            info = info.withSize(stat.getLength());
+        }
+        if (stat.isKnown()) {
+            synchronized (this) {
+                entries.put(uri, new Entry(stat, info));
+            }
+        }
+        return info;
+    }
+
+    /**
+     * 移除刚被本库写入的Uri
+     */
+    public synchronized void invalidate(Uri uri) {
+        entries.remove(uri);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImageInfoCache{size=" + entries.size() + ", hits=" + hitCount + ", misses=" + missCount
+                + ", evictions=" + evictionCount + '}';
+    }
+
+    private static final class Entry {
+        final UriStat stat;
+        final ImageInfo info;
+
+        Entry(UriStat stat, ImageInfo info) {
+            this.stat = stat;
+            this.info = info;
+        }
+    }
+}
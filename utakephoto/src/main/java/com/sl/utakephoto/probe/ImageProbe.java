@@ -0,0 +1,132 @@
+package com.sl.utakephoto.probe;
+
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 打开一次Uri，同时得到格式、宽高、EXIF方向和文件大小
+ */
+public final class ImageProbe {
+    private static final String TAG = "ImageProbe";
+
+    /**
+     * 头部最多缓存的字节数，超过后回退为重新打开Uri
+     */
+    private static final int MARK_LIMIT = 256 * 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private ImageProbe() {
+    }
+
+    public static ImageInfo probe(Context context, Uri uri) throws IOException {
+        ImageSource source = ImageSource.open(context, uri);
+        InputStream in = null;
+        try {
+            in = source.getStream();
+            in.mark(MARK_LIMIT);
+            ImageInfo header = ImageHeaderParser.parse(in);
+            if (!header.hasBounds()) {
+                try {
+                    in.reset();
+                } catch (IOException e) {
+                    //文件头超过了mark的范围，重新打开
+                    Log.w(TAG, "header exceeds mark limit, reopening " + uri);
+                    in = context.getContentResolver().openInputStream(uri);
+                }
+                header = decodeBounds(in, header);
+            }
+            return new ImageInfo(header.getFormat(), header.getMimeType(), header.getWidth(),
+                    header.getHeight(), header.getOrientation(), header.getExifOrientation(), source.getSize());
+        } finally {
+            if (in != source.getStream()) {
+                closeSilently(in);
+            }
+            closeSilently(source);
+        }
+    }
+
+    /**
+     * 只读取EXIF方向，能映射文件时使用映射
+     *
+     * @return 0, 90, 180 or 270
+     */
+    public static int readOrientation(Context context, Uri uri) throws IOException {
+        ImageSource source = ImageSource.open(context, uri);
+        try {
+            return ExifOrientationParser.getOrientation(source.getStream());
+        } finally {
+            closeSilently(source);
+        }
+    }
+
+    /**
+     * 只读取EXIF方向标签的原始值，能映射文件时使用映射
+     *
+     * @return 1-8，没有标签时为0
+     */
+    public static int readExifOrientation(Context context, Uri uri) throws IOException {
+        ImageSource source = ImageSource.open(context, uri);
+        try {
+            return ExifOrientationParser.getExifOrientation(source.getStream());
+        } finally {
+            closeSilently(source);
+        }
+    }
+
+    /**
+     * 最多读取{@link ImageFormat#HEADER_LENGTH}个字节判断格式，能映射文件时使用映射
+     */
+    public static ImageFormat readFormat(Context context, Uri uri) throws IOException {
+        ImageSource source = ImageSource.open(context, uri);
+        try {
+            return ImageFormat.sniff(source.getStream());
+        } finally {
+            closeSilently(source);
+        }
+    }
+
+    /**
+     * 探测已经打开的流。文件头用Java解析，解析不了的格式才交给BitmapFactory，不关闭流
+     */
+    public static ImageInfo probe(InputStream in) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in, BUFFER_SIZE);
+        }
+        in.mark(MARK_LIMIT);
+        ImageInfo header = ImageHeaderParser.parse(in);
+        if (header.hasBounds()) {
+            return header;
+        }
+        try {
+            in.reset();
+        } catch (IOException e) {
+            Log.w(TAG, "header exceeds mark limit", e);
+            return header;
+        }
+        return decodeBounds(in, header);
+    }
+
+    private static ImageInfo decodeBounds(InputStream in, ImageInfo header) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(in, null, options);
+        return new ImageInfo(header.getFormat(), options.outMimeType, options.outWidth, options.outHeight,
+                header.getOrientation(), header.getExifOrientation(), header.getSize());
+    }
+
+    private static void closeSilently(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
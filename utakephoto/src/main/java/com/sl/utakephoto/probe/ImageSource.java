@@ -0,0 +1,117 @@
+package com.sl.utakephoto.probe;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 打开Uri用于读取头信息。file://和能拿到ParcelFileDescriptor的content://直接映射文件，
+ * 解析格式、宽高和方向时不再经过InputStream拷贝；管道等不能映射的回退为带缓冲的流
+ */
+public final class ImageSource implements Closeable {
+    private static final String TAG = "ImageSource";
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final AssetFileDescriptor afd;
+    private final long size;
+    private final InputStream stream;
+    private final boolean mapped;
+
+    private ImageSource(AssetFileDescriptor afd, long size, InputStream stream, boolean mapped) {
+        this.afd = afd;
+        this.size = size;
+        this.stream = stream;
+        this.mapped = mapped;
+    }
+
+    public static ImageSource open(Context context, Uri uri) throws IOException {
+        if (context == null || uri == null) {
+            throw new IllegalArgumentException("bad argument to open");
+        }
+        //file://也通过路径打开ParcelFileDescriptor
+        AssetFileDescriptor afd = context.getContentResolver().openAssetFileDescriptor(uri, "r");
+        if (afd == null) {
+            throw new FileNotFoundException("cannot open " + uri);
+        }
+        FileInputStream fis = null;
+        boolean success = false;
+        try {
+            long size = afd.getLength();
+            if (size == AssetFileDescriptor.UNKNOWN_LENGTH) {
+                size = afd.getParcelFileDescriptor().getStatSize();
+            }
+            if (size < 0) {
+                size = ImageInfo.UNKNOWN_SIZE;
+            }
+            fis = afd.createInputStream();
+            MappedByteBuffer buffer = map(fis.getChannel(), afd.getStartOffset(), size);
+            ImageSource source;
+            if (buffer != null) {
+                //channel关闭后映射仍然有效
+                fis.close();
+                source = new ImageSource(afd, size, new ByteBufferInputStream(buffer), true);
+            } else {
+                source = new ImageSource(afd, size, new BufferedInputStream(fis, BUFFER_SIZE), false);
+            }
+            success = true;
+            return source;
+        } finally {
+            if (!success) {
+                if (fis != null) {
+                    fis.close();
+                }
+                afd.close();
+            }
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long offset, long size) {
+        if (size <= 0 || size > Integer.MAX_VALUE) {
+            return null;
+        }
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        } catch (IOException e) {
+            //有些provider给的管道和socket不能映射
+            Log.d(TAG, "cannot map, falling back to stream", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return 源的字节数，未知时为{@link ImageInfo#UNKNOWN_SIZE}
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /**
+     * @return 位于第一个字节、支持mark/reset的流。映射的源总是可以reset，带缓冲的只能在mark范围内reset
+     */
+    public InputStream getStream() {
+        return stream;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            stream.close();
+        } finally {
+            afd.close();
+        }
+    }
+}
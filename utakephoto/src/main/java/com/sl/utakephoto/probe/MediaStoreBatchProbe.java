@@ -0,0 +1,169 @@
+package com.sl.utakephoto.probe;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 批量查询MediaStore，一次 _ID IN (...) 得到所有图片的方向、大小、类型和宽高。
+ * 不属于MediaStore或者没查到的Uri不在这里探测，由调用方在各自的任务里解析文件头
+ */
+public final class MediaStoreBatchProbe {
+    private static final String TAG = "MediaStoreBatchProbe";
+
+    /**
+     * SQLite默认最多999个参数
+     */
+    private static final int MAX_ARGS = 500;
+
+    private static final String[] PROJECTION = new String[]{
+            BaseColumns._ID,
+            MediaStore.Images.ImageColumns.ORIENTATION,
+            MediaStore.MediaColumns.SIZE,
+            MediaStore.MediaColumns.MIME_TYPE,
+            MediaStore.MediaColumns.WIDTH,
+            MediaStore.MediaColumns.HEIGHT};
+
+    private MediaStoreBatchProbe() {
+    }
+
+    /**
+     * MediaStore的Uri每个集合查询一次。MIME_TYPE列按扩展名得到，格式不可信，
+     * 使用前要经过{@link #sniffFormat}，所以结果不放进{@link ImageInfoCache}
+     *
+     * @return 查到的Uri的信息，其余Uri不在其中
+     */
+    public static Map<Uri, ImageInfo> probe(Context context, List<Uri> uris) {
+        Map<Uri, ImageInfo> result = new HashMap<>();
+        Map<Uri, List<Uri>> collections = new LinkedHashMap<>();
+        for (Uri uri : uris) {
+            Uri collection = collectionOf(uri);
+            if (collection == null) {
+                continue;
+            }
+            List<Uri> members = collections.get(collection);
+            if (members == null) {
+                members = new ArrayList<>();
+                collections.put(collection, members);
+            }
+            members.add(uri);
+        }
+
+        for (Map.Entry<Uri, List<Uri>> entry : collections.entrySet()) {
+            List<Uri> members = entry.getValue();
+            for (int start = 0; start < members.size(); start += MAX_ARGS) {
+                query(context, entry.getKey(), members.subList(start, Math.min(members.size(), start + MAX_ARGS)), result);
+            }
+        }
+        return result;
+    }
+
+    private static void query(Context context, Uri collection, List<Uri> members, Map<Uri, ImageInfo> result) {
+        Map<Long, Uri> byId = new HashMap<>();
+        StringBuilder selection = new StringBuilder(BaseColumns._ID).append(" IN (");
+        String[] args = new String[members.size()];
+        for (int i = 0; i < members.size(); i++) {
+            Uri uri = members.get(i);
+            long id = ContentUris.parseId(uri);
+            byId.put(id, uri);
+            args[i] = String.valueOf(id);
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(')');
+
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(collection, PROJECTION, selection.toString(), args, null);
+            if (cursor == null) {
+                return;
+            }
+            while (cursor.moveToNext()) {
+                Uri uri = byId.get(cursor.getLong(0));
+                int width = cursor.getInt(4);
+                int height = cursor.getInt(5);
+                String mimeType = cursor.getString(3);
+                if (uri == null || width <= 0 || height <= 0 || mimeType == null) {
+                    //还没有扫描，交给EXIF解析
+                    continue;
+                }
+                long size = cursor.isNull(2) ? ImageInfo.UNKNOWN_SIZE : cursor.getLong(2);
+                ImageInfo info = new ImageInfo(ImageFormat.fromMimeType(mimeType), mimeType, width, height,
+                        normalizeDegrees(cursor.getInt(1)), size);
+                result.put(uri, info);
+            }
+        } catch (RuntimeException e) {
+            //没有方向列的集合(视频、下载)或者受限的provider
+            Log.w(TAG, "batch query failed for " + collection, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * 读文件头的32个字节确定格式，方向、大小和宽高仍用查询的结果
+     *
+     * @param row {@link #probe}得到的信息
+     * @return 格式确认后的信息，认不出格式时为null，需要完整探测
+     */
+    public static ImageInfo sniffFormat(Context context, Uri uri, ImageInfo row) throws IOException {
+        ImageFormat format = ImageProbe.readFormat(context, uri);
+        if (format == ImageFormat.UNKNOWN) {
+            return null;
+        }
+        return new ImageInfo(format, null, row.getWidth(), row.getHeight(), row.getOrientation(), row.getSize());
+    }
+
+    /**
+     * @return MediaStore条目Uri(比如content://media/external/images/media/42)所属集合的Uri，不属于MediaStore时为null
+     */
+    static Uri collectionOf(Uri uri) {
+        if (uri == null || !MediaStore.AUTHORITY.equals(uri.getAuthority())) {
+            return null;
+        }
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() < 2 || !isNumeric(segments.get(segments.size() - 1))) {
+            return null;
+        }
+        Uri.Builder builder = uri.buildUpon().path(null).query(null).fragment(null);
+        for (int i = 0; i < segments.size() - 1; i++) {
+            builder.appendPath(segments.get(i));
+        }
+        return builder.build();
+    }
+
+    private static boolean isNumeric(String segment) {
+        if (segment.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < segment.length(); i++) {
+            if (!Character.isDigit(segment.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int normalizeDegrees(int degrees) {
+        switch (degrees) {
+            case 90:
+            case 180:
+            case 270:
+                return degrees;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.sl.utakephoto.probe;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+
+import java.io.File;
+
+/**
+ * Uri对应内容的大小和修改时间，不打开文件，用于判断缓存是否失效
+ */
+public final class UriStat {
+    public static final long UNKNOWN = -1;
+
+    private static final String[] PROJECTION = new String[]{
+            OpenableColumns.SIZE, MediaStore.MediaColumns.DATE_MODIFIED};
+
+    private final long length;
+    private final long lastModified;
+
+    UriStat(long length, long lastModified) {
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * file:// 直接读取File，content:// 查询一次 SIZE 和 DATE_MODIFIED
+     */
+    public static UriStat of(Context context, Uri uri) {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+            File file = new File(uri.getPath());
+            if (file.exists()) {
+                return new UriStat(file.length(), file.lastModified());
+            }
+            return new UriStat(UNKNOWN, UNKNOWN);
+        }
+        long length = UNKNOWN;
+        long lastModified = UNKNOWN;
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(uri, PROJECTION, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                //FileProvider等会忽略不认识的列
+                int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (sizeIndex != -1 && !cursor.isNull(sizeIndex)) {
+                    length = cursor.getLong(sizeIndex);
+                }
+                int modifiedIndex = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+                if (modifiedIndex != -1 && !cursor.isNull(modifiedIndex)) {
+                    lastModified = cursor.getLong(modifiedIndex) * 1000;
+                }
+            }
+        } catch (RuntimeException e) {
+            //有些provider遇到不认识的列会抛异常，按未知处理
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return new UriStat(length, lastModified);
+    }
+
+    /**
+     * @return 字节数，拿不到时为{@link #UNKNOWN}
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return 最后修改时间，毫秒，拿不到时为{@link #UNKNOWN}
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * 只有修改时间才能判断缓存是否失效：只知道大小时，同样大小的改写(比如FileProvider的Uri，没有DATE_MODIFIED)
+     * 会一直命中旧的缓存，这种情况不缓存
+     */
+    public boolean isKnown() {
+        return lastModified != UNKNOWN;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof UriStat)) return false;
+        UriStat stat = (UriStat) o;
+        return length == stat.length && lastModified == stat.lastModified;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (int) (length ^ (length >>> 32)) + (int) (lastModified ^ (lastModified >>> 32));
+    }
+}
@@ -0,0 +1,105 @@
+package com.sl.utakephoto.utils;
+
+import android.text.TextUtils;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 输出文件名生成器。原来按秒的时间戳命名，连拍或者一秒内压缩多张时会互相覆盖，
+ * 现在按模板生成，带进程内单调递增的序号，多线程同时调用也不会重名。
+ * 序号在进程重启后从头开始，写文件时用{@link #nextFile}跳过已经存在的文件名，不会覆盖上次运行的输出。
+ * 模板占位符：{time} yyyyMMddHHmmss，{date} yyyyMMdd，{seq} 序号，{index} 批量中的下标
+ */
+public final class FileNameGenerator {
+    public static final String TIME = "{time}";
+    public static final String DATE = "{date}";
+    public static final String SEQ = "{seq}";
+    public static final String INDEX = "{index}";
+    public static final String DEFAULT_TEMPLATE = TIME + "_" + SEQ;
+    private static final String DEFAULT_SUFFIX = ".jpg";
+
+    private static final FileNameGenerator DEFAULT = new FileNameGenerator(DEFAULT_TEMPLATE);
+
+    /**
+     * 所有生成器共用，同一进程内不会重复
+     */
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    /**
+     * SimpleDateFormat不是线程安全的，每个线程缓存一个，不用每次都创建
+     */
+    private static final ThreadLocal<SimpleDateFormat> TIME_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyyMMddHHmmss", Locale.US);
+        }
+    };
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyyMMdd", Locale.US);
+        }
+    };
+
+    private final String template;
+
+    /**
+     * @param template 不含{@link #SEQ}时自动在末尾加上"_{seq}"，保证不重名
+     */
+    public FileNameGenerator(String template) {
+        if (TextUtils.isEmpty(template)) {
+            template = DEFAULT_TEMPLATE;
+        } else if (!template.contains(SEQ)) {
+            template = template + "_" + SEQ;
+        }
+        this.template = template;
+    }
+
+    public static FileNameGenerator getDefault() {
+        return DEFAULT;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    public String next(String suffix) {
+        return next(0, suffix);
+    }
+
+    /**
+     * dir下还不存在的文件，文件名已存在时递增序号重新生成
+     *
+     * @param index  批量中的下标，替换{@link #INDEX}
+     * @param suffix 带点的后缀，为空时使用.jpg
+     */
+    public File nextFile(File dir, int index, String suffix) {
+        File file;
+        do {
+            file = new File(dir, next(index, suffix));
+        } while (file.exists());
+        return file;
+    }
+
+    /**
+     * 只生成名字，不检查是否已存在。序号在进程重启后从头开始，写入前需要调用方检查，见{@link #nextFile}
+     *
+     * @param index  批量中的下标，替换{@link #INDEX}
+     * @param suffix 带点的后缀，为空时使用.jpg
+     */
+    public String next(int index, String suffix) {
+        long seq = SEQUENCE.incrementAndGet();
+        String name = template;
+        if (name.contains(TIME) || name.contains(DATE)) {
+            Date now = new Date();
+            name = name.replace(TIME, TIME_FORMAT.get().format(now))
+                    .replace(DATE, DATE_FORMAT.get().format(now));
+        }
+        name = name.replace(SEQ, String.valueOf(seq)).replace(INDEX, String.valueOf(index));
+        return name + (TextUtils.isEmpty(suffix) ? DEFAULT_SUFFIX : suffix);
+    }
+}
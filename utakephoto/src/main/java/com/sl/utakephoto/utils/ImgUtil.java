@@ -6,7 +6,9 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Build;
@@ -14,18 +16,21 @@ import android.provider.MediaStore;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
-import java.io.ByteArrayOutputStream;
+import com.sl.utakephoto.pool.LruBitmapPool;
+import com.sl.utakephoto.probe.ExifOrientationParser;
+import com.sl.utakephoto.probe.ImageFormat;
+import com.sl.utakephoto.probe.ImageInfo;
+import com.sl.utakephoto.probe.ImageProbe;
+
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
 
 import static android.media.ExifInterface.ORIENTATION_NORMAL;
 import static android.media.ExifInterface.ORIENTATION_ROTATE_180;
 import static android.media.ExifInterface.ORIENTATION_ROTATE_270;
 import static android.media.ExifInterface.ORIENTATION_ROTATE_90;
 import static android.media.ExifInterface.ORIENTATION_UNDEFINED;
-import static com.sl.utakephoto.crop.CropUtils.toByteArray;
 
 /**
  * author : Sl
@@ -34,7 +39,6 @@ import static com.sl.utakephoto.crop.CropUtils.toByteArray;
  */
 public class ImgUtil {
     private static final String TAG = "ImgUtil";
-    private static final byte[] JPEG_SIGNATURE = new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF};
 
 
     /**
@@ -43,34 +47,27 @@ public class ImgUtil {
      */
     public static int getMetadataRotation(Context context, Uri uri) {
         try {
-            long l = System.currentTimeMillis();
-            int orientation = getOrientation(context.getContentResolver().openInputStream(uri));
-            Log.d("time", String.valueOf(System.currentTimeMillis()-l));
-            return orientation;
-        } catch (FileNotFoundException e) {
+            return ImageProbe.readOrientation(context, uri);
+        } catch (IOException e) {
             e.printStackTrace();
             return 0;
         }
-
     }
 
     public static boolean JPEG_MIME_TYPE(Context context, Uri uri) {
-        InputStream inputStream = null;
+        return getImageFormat(context, uri) == ImageFormat.JPEG;
+    }
+
+    /**
+     * 根据文件头判断图片格式，最多读取{@link ImageFormat#HEADER_LENGTH}个字节
+     */
+    public static ImageFormat getImageFormat(Context context, Uri uri) {
         try {
-            inputStream = context.getContentResolver().openInputStream(uri);
-            return isJPG(inputStream);
-        } catch (FileNotFoundException e) {
+            return ImageProbe.readFormat(context, uri);
+        } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                if (inputStream != null) {
-                    inputStream.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
-        return false;
+        return ImageFormat.UNKNOWN;
     }
 
     /**
@@ -79,42 +76,11 @@ public class ImgUtil {
      * @param is image file input stream
      */
     static boolean isJPG(InputStream is) {
-        return isJPG(toByteArray(is));
-    }
-
-
-    private static boolean isJPG(byte[] data) {
-        if (data == null || data.length < 3) {
-            return false;
-        }
-        byte[] signatureB = new byte[]{data[0], data[1], data[2]};
-        return Arrays.equals(JPEG_SIGNATURE, signatureB);
-    }
-
-    private static byte[] toByteArray(InputStream is) {
-        if (is == null) {
-            return new byte[0];
-        }
-
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-
-        int read;
-        byte[] data = new byte[4096];
-
         try {
-            while ((read = is.read(data, 0, data.length)) != -1) {
-                buffer.write(data, 0, read);
-            }
-        } catch (Exception ignored) {
-            return new byte[0];
-        } finally {
-            try {
-                buffer.close();
-            } catch (IOException ignored) {
-            }
+            return ImageFormat.sniff(is) == ImageFormat.JPEG;
+        } catch (IOException e) {
+            return false;
         }
-
-        return buffer.toByteArray();
     }
 
     private static final String JPEG_MIME_TYPE = "image/jpeg";
@@ -230,6 +196,17 @@ public class ImgUtil {
         return ret;
     }
 
+    /**
+     * 优先根据文件内容判断后缀，content://等没有扩展名的Uri也能得到正确的后缀
+     */
+    public static String extSuffix(Context context, Uri uri) {
+        ImageFormat format = getImageFormat(context, uri);
+        if (format != ImageFormat.UNKNOWN) {
+            return format.getSuffix();
+        }
+        return extSuffix(uri);
+    }
+
     public static String extSuffix(Uri uri) {
         try {
 
@@ -240,13 +217,16 @@ public class ImgUtil {
     }
 
     public static int computeSize(InputStream inputStream) {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        options.inSampleSize = 1;
+        try {
+            ImageInfo info = ImageProbe.probe(inputStream);
+            return computeSize(info.getWidth(), info.getHeight());
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read image bounds", e);
+            return 1;
+        }
+    }
 
-        BitmapFactory.decodeStream(inputStream, null, options);
-        int srcWidth = options.outWidth;
-        int srcHeight = options.outHeight;
+    public static int computeSize(int srcWidth, int srcHeight) {
         srcWidth = srcWidth % 2 == 1 ? srcWidth + 1 : srcWidth;
         srcHeight = srcHeight % 2 == 1 ? srcHeight + 1 : srcHeight;
 
@@ -272,128 +252,149 @@ public class ImgUtil {
     }
 
     /**
-     * Returns the degrees in clockwise. Values are 0, 90, 180, or 270.
+     * 按最大宽高和最大像素数计算缩放比例，只缩小不放大
+     *
+     * @param maxWidth  最大宽度，0为不限制
+     * @param maxHeight 最大高度，0为不限制
+     * @param maxPixels 最大像素数，0为不限制
+     * @return 0~1
      */
-    public static int getOrientation(InputStream is) {
-        return getOrientation(toByteArray(is));
+    public static double computeScale(int width, int height, int maxWidth, int maxHeight, long maxPixels) {
+        double scale = 1;
+        if (maxWidth > 0 && width > maxWidth) {
+            scale = Math.min(scale, (double) maxWidth / width);
+        }
+        if (maxHeight > 0 && height > maxHeight) {
+            scale = Math.min(scale, (double) maxHeight / height);
+        }
+        if (maxPixels > 0 && (long) width * height > maxPixels) {
+            scale = Math.min(scale, Math.sqrt((double) maxPixels / ((long) width * height)));
+        }
+        return scale;
     }
 
-    private static int getOrientation(byte[] jpeg) {
-        if (jpeg == null) {
-            return 0;
+    /**
+     * @return 解码后仍不小于目标尺寸的最大2的幂采样率
+     */
+    public static int computeSampleSize(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        int sampleSize = 1;
+        while (srcWidth / (sampleSize * 2) >= dstWidth && srcHeight / (sampleSize * 2) >= dstHeight) {
+            sampleSize *= 2;
         }
+        return sampleSize;
+    }
 
-        int offset = 0;
-        int length = 0;
+    /**
+     * 两步缩放到目标尺寸：先按2的幂inSampleSize解码，剩下的比例用inDensity/inTargetDensity在解码时缩放。
+     * 个别解码器会差1像素，解码后在{@link #transform(Bitmap, int, int, int, LruBitmapPool)}里和旋转一起校正
+     */
+    public static void setTargetSize(BitmapFactory.Options options, int srcWidth, int srcHeight,
+                                     int dstWidth, int dstHeight) {
+        options.inSampleSize = computeSampleSize(srcWidth, srcHeight, dstWidth, dstHeight);
+        if (srcWidth / options.inSampleSize != dstWidth) {
+            options.inScaled = true;
+            options.inDensity = srcWidth;
+            options.inTargetDensity = dstWidth * options.inSampleSize;
+        }
+    }
 
-        // ISO/IEC 10918-1:1993(E)
-        while (offset + 3 < jpeg.length && (jpeg[offset++] & 0xFF) == 0xFF) {
-            int marker = jpeg[offset] & 0xFF;
+    /**
+     * Returns the degrees in clockwise. Values are 0, 90, 180, or 270.
+     */
+    public static int getOrientation(InputStream is) {
+        try {
+            return ExifOrientationParser.getOrientation(is);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read EXIF orientation", e);
+            return 0;
+        }
+    }
 
-            // Check if the marker is a padding.
-            if (marker == 0xFF) {
-                continue;
-            }
-            offset++;
+    public static Bitmap rotatingImage(Bitmap bitmap, int angle) {
+        Matrix matrix = new Matrix();
 
-            // Check if the marker is SOI or TEM.
-            if (marker == 0xD8 || marker == 0x01) {
-                continue;
-            }
-            // Check if the marker is EOI or SOS.
-            if (marker == 0xD9 || marker == 0xDA) {
-                break;
-            }
+        matrix.postRotate(angle);
 
-            // Get the length and check if it is reasonable.
-            length = pack(jpeg, offset, 2, false);
-            if (length < 2 || offset + length > jpeg.length) {
-                Log.e(TAG, "Invalid length");
-                return 0;
-            }
+        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+    }
 
-            // Break if the marker is EXIF in APP1.
-            if (marker == 0xE1 && length >= 8
-                    && pack(jpeg, offset + 2, 4, false) == 0x45786966
-                    && pack(jpeg, offset + 6, 2, false) == 0) {
-                offset += 8;
-                length -= 8;
-                break;
-            }
+    /**
+     * 旋转到池里取出的Bitmap上，原Bitmap放回池里
+     *
+     * @param angle 顺时针角度，90的倍数
+     */
+    public static Bitmap rotatingImage(Bitmap bitmap, int angle, LruBitmapPool pool) {
+        return transform(bitmap, bitmap.getWidth(), bitmap.getHeight(), angle, pool);
+    }
 
-            // Skip other markers.
-            offset += length;
-            length = 0;
+    /**
+     * 缩放到精确尺寸再旋转，用一个Matrix一次绘制到池里取出的最终尺寸的Bitmap上，
+     * 不产生缩放后、旋转前的中间Bitmap。原Bitmap放回池里，不需要缩放和旋转时原样返回
+     *
+     * @param width  缩放后的宽，旋转前的方向
+     * @param height 缩放后的高，旋转前的方向
+     * @param angle  顺时针角度，90的倍数
+     */
+    public static Bitmap transform(Bitmap bitmap, int width, int height, int angle, LruBitmapPool pool) {
+        int degrees = ((angle % 360) + 360) % 360;
+        boolean scale = bitmap.getWidth() != width || bitmap.getHeight() != height;
+        if (degrees == 0 && !scale) {
+            return bitmap;
         }
+        boolean swap = degrees % 180 != 0;
+        Bitmap.Config config = bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap result = pool.get(swap ? height : width, swap ? width : height, config);
+        Matrix matrix = new Matrix();
+        matrix.setScale((float) width / bitmap.getWidth(), (float) height / bitmap.getHeight());
+        matrix.postRotate(degrees);
+        //旋转后移回第一象限
+        if (degrees == 90) {
+            matrix.postTranslate(height, 0);
+        } else if (degrees == 180) {
+            matrix.postTranslate(width, height);
+        } else if (degrees == 270) {
+            matrix.postTranslate(0, width);
+        }
+        result.setHasAlpha(bitmap.hasAlpha());
+        //只旋转时像素一一对应，不需要过滤
+        new Canvas(result).drawBitmap(bitmap, matrix, scale ? new Paint(Paint.FILTER_BITMAP_FLAG) : null);
+        pool.put(bitmap);
+        return result;
+    }
 
-        // JEITA CP-3451 Exif Version 2.2
-        if (length > 8) {
-            // Identify the byte order.
-            int tag = pack(jpeg, offset, 4, false);
-            if (tag != 0x49492A00 && tag != 0x4D4D002A) {
-                Log.e(TAG, "Invalid byte order");
-                return 0;
-            }
-            boolean littleEndian = (tag == 0x49492A00);
-
-            // Get the offset and check if it is reasonable.
-            int count = pack(jpeg, offset + 4, 4, littleEndian) + 2;
-            if (count < 10 || count > length) {
-                Log.e(TAG, "Invalid offset");
-                return 0;
-            }
-            offset += count;
-            length -= count;
-
-            // Get the count and go through all the elements.
-            count = pack(jpeg, offset - 2, 2, littleEndian);
-            while (count-- > 0 && length >= 12) {
-                // Get the tag and check if it is orientation.
-                tag = pack(jpeg, offset, 2, littleEndian);
-                if (tag == 0x0112) {
-                    int orientation = pack(jpeg, offset + 8, 2, littleEndian);
-                    switch (orientation) {
-                        case 1:
-                            return 0;
-                        case 3:
-                            return 180;
-                        case 6:
-                            return 90;
-                        case 8:
-                            return 270;
-                    }
-                    Log.e(TAG, "Unsupported orientation");
-                    return 0;
+    /**
+     * 解码Uri，池里有足够大的Bitmap时解码到它上面，不能复用时重新打开不带inBitmap再解码一次
+     *
+     * @param byteCount 解码结果的字节数上限，见{@link MemoryBudget#estimate}
+     * @return 解码失败时返回null
+     */
+    public static Bitmap decode(Context context, Uri uri, BitmapFactory.Options options, long byteCount,
+                                LruBitmapPool pool) throws IOException {
+        pool.setInBitmap(options, byteCount);
+        if (options.inBitmap != null) {
+            try {
+                Bitmap bitmap = decode(context, uri, options);
+                if (bitmap != null) {
+                    return bitmap;
                 }
-                offset += 12;
-                length -= 12;
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "cannot decode " + uri + " into a pooled bitmap, retrying", e);
             }
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
         }
-
-        Log.e(TAG, "Orientation not found");
-        return 0;
+        return decode(context, uri, options);
     }
 
-    private static int pack(byte[] bytes, int offset, int length, boolean littleEndian) {
-        int step = 1;
-        if (littleEndian) {
-            offset += length - 1;
-            step = -1;
+    private static Bitmap decode(Context context, Uri uri, BitmapFactory.Options options) throws IOException {
+        InputStream inputStream = context.getContentResolver().openInputStream(uri);
+        if (inputStream == null) {
+            throw new FileNotFoundException("cannot open " + uri);
         }
-
-        int value = 0;
-        while (length-- > 0) {
-            value = (value << 8) | (bytes[offset] & 0xFF);
-            offset += step;
+        try {
+            return BitmapFactory.decodeStream(inputStream, null, options);
+        } finally {
+            inputStream.close();
         }
-        return value;
-    }
-
-    public static Bitmap rotatingImage(Bitmap bitmap, int angle) {
-        Matrix matrix = new Matrix();
-
-        matrix.postRotate(angle);
-
-        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
     }
 }
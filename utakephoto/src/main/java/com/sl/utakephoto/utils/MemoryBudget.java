@@ -0,0 +1,164 @@
+package com.sl.utakephoto.utils;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import static com.sl.utakephoto.utils.TConstant.TAG;
+
+/**
+ * 解码内存的准入控制。解码前按探测到的宽高、采样率和Bitmap.Config估算要占的字节数，
+ * 所有进行中的解码加起来不超过堆上限的一定比例，超出时排队等待，而不是一起解码导致OOM。
+ * 单个任务超过预算时只有在没有其它任务时才放行
+ */
+public final class MemoryBudget {
+    /**
+     * 默认用堆上限的一半做解码
+     */
+    public static final float DEFAULT_SHARE = 0.5f;
+    private static final long MB = 1024 * 1024;
+
+    private static volatile MemoryBudget instance;
+
+    private final long heapLimit;
+    private long budget;
+    private long inFlight;
+
+    public static MemoryBudget getInstance(Context context) {
+        if (instance == null) {
+            synchronized (MemoryBudget.class) {
+                if (instance == null) {
+                    instance = new MemoryBudget(heapLimit(context));
+                }
+            }
+        }
+        return instance;
+    }
+
+    MemoryBudget(long heapLimit) {
+        this.heapLimit = heapLimit;
+        this.budget = (long) (heapLimit * DEFAULT_SHARE);
+    }
+
+    /**
+     * Runtime.maxMemory()和ActivityManager的memoryClass取较小值，largeHeap时maxMemory已经是较大的值
+     */
+    private static long heapLimit(Context context) {
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        ActivityManager am = context == null ? null
+                : (ActivityManager) context.getApplicationContext().getSystemService(Context.ACTIVITY_SERVICE);
+        if (am == null) {
+            return maxMemory;
+        }
+        boolean largeHeap = (context.getApplicationInfo().flags & ApplicationInfo.FLAG_LARGE_HEAP) != 0;
+        long memoryClass = (largeHeap ? am.getLargeMemoryClass() : am.getMemoryClass()) * MB;
+        return memoryClass > 0 ? Math.min(maxMemory, memoryClass) : maxMemory;
+    }
+
+    /**
+     * 修改进程内所有解码默认使用的比例，应用启动时设置一次。
+     * 只想影响一次压缩时用{@link com.sl.utakephoto.compress.CompressConfig#setDecodeMemoryShare}
+     *
+     * @param share 用于解码的堆内存比例，(0, 1]
+     */
+    public synchronized void setShare(float share) {
+        if (share <= 0 || share > 1) {
+            throw new IllegalArgumentException("share must be in (0, 1]: " + share);
+        }
+        budget = (long) (heapLimit * share);
+        notifyAll();
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @param share 本次任务用于解码的堆内存比例，0时为{@link #getBudget}
+     */
+    public synchronized long getBudget(float share) {
+        return share > 0 ? (long) (heapLimit * share) : budget;
+    }
+
+    public synchronized long getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * 预算不足时阻塞，直到其它任务{@link #release}。必须在后台线程调用
+     *
+     * @param bytes {@link #estimate}的结果
+     */
+    public void acquire(long bytes) throws IOException {
+        acquire(bytes, 0);
+    }
+
+    /**
+     * 同{@link #acquire(long)}，但按本次任务的比例判断，进行中的解码仍然是所有任务一起计算，不修改全局预算
+     *
+     * @param share 见{@link #getBudget(float)}
+     */
+    public void acquire(long bytes, float share) throws IOException {
+        synchronized (this) {
+            try {
+                while (inFlight > 0 && inFlight + bytes > getBudget(share)) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for decode memory");
+            }
+            long limit = getBudget(share);
+            if (bytes > limit) {
+                Log.w(TAG, "decode needs " + bytes + " bytes, more than the budget " + limit);
+            }
+            inFlight += bytes;
+        }
+    }
+
+    public synchronized void release(long bytes) {
+        inFlight = Math.max(0, inFlight - bytes);
+        notifyAll();
+    }
+
+    /**
+     * 估算按options解码width*height的图片得到的Bitmap大小
+     */
+    public static long estimate(int width, int height, BitmapFactory.Options options) {
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        int sampleSize = options == null ? 1 : Math.max(1, options.inSampleSize);
+        double w = Math.ceil((double) width / sampleSize);
+        double h = Math.ceil((double) height / sampleSize);
+        if (options != null && options.inScaled && options.inDensity > 0 && options.inTargetDensity > 0) {
+            double scale = (double) options.inTargetDensity / options.inDensity;
+            w = Math.ceil(w * scale);
+            h = Math.ceil(h * scale);
+        }
+        Bitmap.Config config = options == null ? null : options.inPreferredConfig;
+        return (long) (w * h) * bytesPerPixel(config);
+    }
+
+    public static int bytesPerPixel(Bitmap.Config config) {
+        if (config == null) {
+            return 4;
+        }
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                //RGBA_F16是API 26加的，按名字判断
+                return "RGBA_F16".equals(config.name()) ? 8 : 4;
+        }
+    }
+}
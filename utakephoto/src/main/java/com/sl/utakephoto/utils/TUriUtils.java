@@ -5,7 +5,6 @@ import android.content.Context;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
-import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -15,9 +14,6 @@ import androidx.core.content.FileProvider;
 import com.sl.utakephoto.exception.TakeException;
 
 import java.io.File;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
 
 /**
  * author : Sl
@@ -142,9 +138,7 @@ public class TUriUtils {
      * @return
      */
     public static Uri getTempSchemeContentUri(@NonNull Context context, String suffix) {
-        String timeStamp = new SimpleDateFormat("yyyyMMddHHmmss", Locale.getDefault()).format(new Date());
-        File file = new File(context.getExternalFilesDir(Environment.DIRECTORY_PICTURES), "/" + timeStamp + (TextUtils.isEmpty(suffix) ? ".jpg" : suffix));
-        if (!file.getParentFile().exists()) file.getParentFile().mkdirs();
+        File file = newTempFile(context, FileNameGenerator.getDefault(), 0, suffix);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
             return getUriFromFile(context, file);
         } else {
@@ -170,10 +164,26 @@ public class TUriUtils {
      * @return
      */
     public static Uri getTempSchemeFileUri(@NonNull Context context, String suffix) {
-        String timeStamp = new SimpleDateFormat("yyyyMMddHHmmss", Locale.getDefault()).format(new Date());
-        File file = new File(context.getExternalFilesDir(Environment.DIRECTORY_PICTURES), "/" + timeStamp + (TextUtils.isEmpty(suffix) ? ".jpg" : suffix));
+        return getTempSchemeFileUri(context, FileNameGenerator.getDefault(), 0, suffix);
+    }
+
+    /**
+     * 创建Scheme为file临时的uri，文件名由generator生成
+     *
+     * @param index 批量中的下标
+     */
+    public static Uri getTempSchemeFileUri(@NonNull Context context, FileNameGenerator generator, int index, String suffix) {
+        return Uri.fromFile(newTempFile(context, generator, index, suffix));
+    }
+
+    /**
+     * 应用私有Pictures目录下还不存在的文件
+     */
+    private static File newTempFile(Context context, FileNameGenerator generator, int index, String suffix) {
+        File dir = context.getExternalFilesDir(Environment.DIRECTORY_PICTURES);
+        File file = generator.nextFile(dir, index, suffix);
         if (!file.getParentFile().exists()) file.getParentFile().mkdirs();
-        return Uri.fromFile(file);
+        return file;
     }
 
 }
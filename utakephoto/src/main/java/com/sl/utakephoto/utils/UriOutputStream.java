@@ -0,0 +1,171 @@
+package com.sl.utakephoto.utils;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.sl.utakephoto.pool.LruArrayPool;
+import com.sl.utakephoto.pool.PooledBufferedOutputStream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * 直接编码到目标Uri的带缓冲输出流，不再先写ByteArrayOutputStream再toByteArray拷贝一次。
+ * file的Uri先写到同目录的临时文件，{@link #commit()}时重命名，失败时不会留下写了一半的文件；
+ * content的Uri直接写ContentResolver的流。缓冲区从{@link LruArrayPool}复用
+ */
+public final class UriOutputStream extends PooledBufferedOutputStream {
+    public static final int BUFFER_SIZE = 16 * 1024;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File target;
+    private final File temp;
+    private long written;
+    private boolean committed;
+    private boolean closed;
+
+    private UriOutputStream(OutputStream out, File target, File temp) {
+        super(out, BUFFER_SIZE);
+        this.target = target;
+        this.temp = temp;
+    }
+
+    public static UriOutputStream open(Context context, Uri uri) throws IOException {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+            File target = new File(uri.getPath());
+            File parent = target.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            File temp = File.createTempFile(target.getName(), TEMP_SUFFIX, parent);
+            return new UriOutputStream(new FileOutputStream(temp), target, temp);
+        }
+        OutputStream out = context.getContentResolver().openOutputStream(uri);
+        if (out == null) {
+            throw new FileNotFoundException("cannot write " + uri);
+        }
+        return new UriOutputStream(out, null, null);
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        super.write(b);
+        written++;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        written += len;
+    }
+
+    /**
+     * 把in剩余的内容原样拷贝进来。两边都是普通文件时用FileChannel.transferTo在内核里拷贝，
+     * 管道等拿不到大小的流退回到缓冲区拷贝
+     *
+     * @return 拷贝的字节数
+     */
+    public long transferFrom(InputStream in) throws IOException {
+        long count = 0;
+        if (isWholeFile(in) && isWholeFile(out)) {
+            flush();
+            FileChannel source = ((FileInputStream) in).getChannel();
+            FileChannel target = ((FileOutputStream) out).getChannel();
+            long position = source.position();
+            long size = source.size() - position;
+            while (count < size) {
+                long n = source.transferTo(position + count, size - count, target);
+                if (n <= 0) {
+                    break;
+                }
+                count += n;
+            }
+            source.position(position + count);
+            written += count;
+        }
+        LruArrayPool pool = LruArrayPool.getInstance();
+        byte[] buffer = pool.get(BUFFER_SIZE);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                write(buffer, 0, read);
+                count += read;
+            }
+        } finally {
+            pool.put(buffer);
+        }
+        return count;
+    }
+
+    /**
+     * AssetFileDescriptor的流只对应文件的一段，不能直接用它的FileChannel
+     */
+    private static boolean isWholeFile(Object stream) {
+        Class<?> type = stream.getClass();
+        return type == FileInputStream.class || type == ParcelFileDescriptor.AutoCloseInputStream.class
+                || type == FileOutputStream.class || type == ParcelFileDescriptor.AutoCloseOutputStream.class;
+    }
+
+    /**
+     * @return 已经写入的字节数
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * 写完后调用：刷新并关闭，file的Uri把临时文件重命名为目标文件
+     */
+    public void commit() throws IOException {
+        if (closed) {
+            throw new IOException("stream already closed");
+        }
+        committed = true;
+        try {
+            close();
+        } catch (IOException e) {
+            if (temp != null) {
+                temp.delete();
+            }
+            throw e;
+        }
+        if (temp != null && !temp.renameTo(target)) {
+            //有些文件系统不能覆盖已存在的文件
+            if (!target.delete() || !temp.renameTo(target)) {
+                temp.delete();
+                throw new IOException("cannot rename " + temp + " to " + target);
+            }
+        }
+    }
+
+    /**
+     * 没有{@link #commit()}就关闭时丢弃临时文件
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (committed) {
+                super.close();
+            } else {
+                out.close();
+            }
+        } finally {
+            release();
+            if (!committed && temp != null) {
+                temp.delete();
+            }
+        }
+    }
+}
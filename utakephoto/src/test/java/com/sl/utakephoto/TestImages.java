@@ -0,0 +1,121 @@
+package com.sl.utakephoto;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * 测试用的图片，全部在代码里生成，不依赖资源文件
+ */
+public final class TestImages {
+
+    private TestImages() {
+    }
+
+    /**
+     * @return 带渐变内容的基线JPEG，ImageIO写出，开头是JFIF APP0
+     */
+    public static byte[] jpeg(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, ((x * 4 & 0xFF) << 16) | ((y * 5 & 0xFF) << 8) | ((x + y) & 0xFF));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, "jpg", out)) {
+            throw new IOException("no JPEG writer");
+        }
+        return out.toByteArray();
+    }
+
+    public static BufferedImage decode(byte[] data) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+        if (image == null) {
+            throw new IOException("cannot decode");
+        }
+        return image;
+    }
+
+    /**
+     * @return 只有IFD0方向标签的EXIF APP1段内容(不含标记和长度)
+     */
+    public static byte[] exif(int orientation, boolean littleEndian) {
+        byte[] segment = new byte[6 + 8 + 2 + 12 + 4];
+        System.arraycopy(new byte[]{'E', 'x', 'i', 'f', 0, 0}, 0, segment, 0, 6);
+        int tiff = 6;
+        segment[tiff] = segment[tiff + 1] = (byte) (littleEndian ? 'I' : 'M');
+        put(segment, tiff + 2, 2, 42, littleEndian);
+        put(segment, tiff + 4, 4, 8, littleEndian);
+        put(segment, tiff + 8, 2, 1, littleEndian);
+        int entry = tiff + 10;
+        put(segment, entry, 2, 0x0112, littleEndian);
+        put(segment, entry + 2, 2, 3, littleEndian);
+        put(segment, entry + 4, 4, 1, littleEndian);
+        put(segment, entry + 8, 2, orientation, littleEndian);
+        return segment;
+    }
+
+    /**
+     * @return 在SOI后面插入一个段的JPEG
+     */
+    public static byte[] insertAfterSoi(byte[] jpeg, int marker, byte[] payload) {
+        return insert(jpeg, 2, marker, payload);
+    }
+
+    /**
+     * @return 在offset处插入一个段的JPEG
+     */
+    public static byte[] insert(byte[] jpeg, int offset, int marker, byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(jpeg, 0, offset);
+        out.write(0xFF);
+        out.write(marker);
+        out.write((payload.length + 2) >> 8);
+        out.write(payload.length + 2);
+        out.write(payload, 0, payload.length);
+        out.write(jpeg, offset, jpeg.length - offset);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return 第一个SOI之后的段开始的位置，跳过开头的APP0
+     */
+    public static int afterApp0(byte[] jpeg) {
+        int offset = 2;
+        while ((jpeg[offset] & 0xFF) == 0xFF && (jpeg[offset + 1] & 0xFF) == 0xE0) {
+            offset += 2 + (((jpeg[offset + 2] & 0xFF) << 8) | (jpeg[offset + 3] & 0xFF));
+        }
+        return offset;
+    }
+
+    /**
+     * @return 依次出现的标记，到SOS为止
+     */
+    public static int[] markers(byte[] jpeg) {
+        int[] markers = new int[64];
+        int count = 0;
+        int offset = 2;
+        while (offset + 4 <= jpeg.length && count < markers.length) {
+            int marker = jpeg[offset + 1] & 0xFF;
+            markers[count++] = marker;
+            if (marker == 0xDA) {
+                break;
+            }
+            offset += 2 + (((jpeg[offset + 2] & 0xFF) << 8) | (jpeg[offset + 3] & 0xFF));
+        }
+        int[] result = new int[count];
+        System.arraycopy(markers, 0, result, 0, count);
+        return result;
+    }
+
+    private static void put(byte[] bytes, int offset, int length, int value, boolean littleEndian) {
+        for (int i = 0; i < length; i++) {
+            int shift = littleEndian ? 8 * i : 8 * (length - 1 - i);
+            bytes[offset + i] = (byte) (value >> shift);
+        }
+    }
+}
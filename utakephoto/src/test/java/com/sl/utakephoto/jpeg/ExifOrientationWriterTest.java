@@ -0,0 +1,179 @@
+package com.sl.utakephoto.jpeg;
+
+import com.sl.utakephoto.TestImages;
+import com.sl.utakephoto.probe.ExifOrientationParser;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ExifOrientationWriterTest {
+    private static final int APP0 = 0xE0;
+    private static final int APP1 = 0xE1;
+    private static final int APP2 = 0xE2;
+
+    @Test
+    public void patchesExistingTagInPlace() throws IOException {
+        byte[] jpeg = TestImages.jpeg(16, 16);
+        for (boolean littleEndian : new boolean[]{true, false}) {
+            byte[] source = TestImages.insert(jpeg, TestImages.afterApp0(jpeg), APP1, TestImages.exif(6, littleEndian));
+            for (int degrees : new int[]{0, 90, 180, 270}) {
+                byte[] written = write(source, degrees);
+                assertEquals(source.length, written.length);
+                assertEquals(degrees, orientation(written));
+                assertArrayEquals(new int[]{APP0, APP1}, Arrays.copyOf(TestImages.markers(written), 2));
+            }
+        }
+    }
+
+    @Test
+    public void insertsExifAfterJfif() throws IOException {
+        byte[] source = TestImages.jpeg(16, 16);
+        byte[] written = write(source, 90);
+        assertEquals(90, orientation(written));
+        int[] markers = TestImages.markers(written);
+        assertEquals(APP0, markers[0]);
+        assertEquals(APP1, markers[1]);
+        assertEquals(1, count(markers, APP1));
+        assertImageDataUnchanged(source, written);
+    }
+
+    @Test
+    public void insertsExifBeforeIccProfile() throws IOException {
+        byte[] jpeg = TestImages.jpeg(16, 16);
+        byte[] source = TestImages.insert(jpeg, TestImages.afterApp0(jpeg), APP2, icc());
+        byte[] written = write(source, 270);
+        assertEquals(270, orientation(written));
+        assertArrayEquals(new int[]{APP0, APP1, APP2}, Arrays.copyOf(TestImages.markers(written), 3));
+    }
+
+    @Test
+    public void keepsExifAfterIccProfileAndDoesNotAddAnother() throws IOException {
+        byte[] jpeg = TestImages.jpeg(16, 16);
+        byte[] source = TestImages.insert(jpeg, TestImages.afterApp0(jpeg), APP1, TestImages.exif(1, true));
+        source = TestImages.insert(source, TestImages.afterApp0(source), APP2, icc());
+        byte[] written = write(source, 180);
+        assertEquals(180, orientation(written));
+        int[] markers = TestImages.markers(written);
+        assertArrayEquals(new int[]{APP0, APP2, APP1}, Arrays.copyOf(markers, 3));
+        assertEquals(1, count(markers, APP1));
+        assertEquals(source.length, written.length);
+    }
+
+    @Test
+    public void addsTagToExifWithoutOrientation() throws IOException {
+        byte[] exif = TestImages.exif(6, false);
+        //把方向标签改成ImageWidth(0x0100)，排在方向前面
+        exif[16] = 0x01;
+        exif[17] = 0x00;
+        byte[] jpeg = TestImages.jpeg(16, 16);
+        byte[] source = TestImages.insert(jpeg, TestImages.afterApp0(jpeg), APP1, exif);
+        assertEquals(0, orientation(source));
+
+        byte[] written = write(source, 90);
+        assertEquals(90, orientation(written));
+        assertEquals(1, count(TestImages.markers(written), APP1));
+        assertImageDataUnchanged(source, written);
+    }
+
+    @Test
+    public void keepsMirroredTagWhenNotReplacing() throws IOException {
+        byte[] jpeg = TestImages.jpeg(16, 16);
+        for (int mirrored : new int[]{2, 4, 5, 7}) {
+            byte[] source = TestImages.insert(jpeg, TestImages.afterApp0(jpeg), APP1, TestImages.exif(mirrored, true));
+            byte[] written = write(source, 90, false);
+            assertArrayEquals(source, written);
+            assertEquals(mirrored, ExifOrientationParser.getExifOrientation(new ByteArrayInputStream(written)));
+        }
+    }
+
+    @Test
+    public void addsMissingTagWhenNotReplacing() throws IOException {
+        byte[] source = TestImages.jpeg(16, 16);
+        assertArrayEquals(source, write(source, 0, false));
+
+        byte[] written = write(source, 270, false);
+        assertEquals(270, orientation(written));
+        assertEquals(1, count(TestImages.markers(written), APP1));
+    }
+
+    @Test
+    public void rejectsNonJpeg() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            ExifOrientationWriter.write(new ByteArrayInputStream(new byte[]{(byte) 0x89, 'P', 'N', 'G'}), out, 90);
+            fail("not a JPEG");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    public void rejectsMalformedExif() throws IOException {
+        byte[] exif = TestImages.exif(6, true);
+        exif[6] = 'X';
+        byte[] source = TestImages.insertAfterSoi(TestImages.jpeg(16, 16), APP1, exif);
+        try {
+            write(source, 90);
+            fail("invalid byte order");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void mapsDegreesToExifValues() {
+        assertEquals(1, ExifOrientationWriter.toExifOrientation(0));
+        assertEquals(6, ExifOrientationWriter.toExifOrientation(90));
+        assertEquals(3, ExifOrientationWriter.toExifOrientation(180));
+        assertEquals(8, ExifOrientationWriter.toExifOrientation(270));
+        assertEquals(8, ExifOrientationWriter.toExifOrientation(-90));
+    }
+
+    private static void assertImageDataUnchanged(byte[] source, byte[] written) {
+        int inserted = written.length - source.length;
+        int sos = TestImages.afterApp0(source);
+        while ((source[sos + 1] & 0xFF) != 0xDA) {
+            sos += 2 + (((source[sos + 2] & 0xFF) << 8) | (source[sos + 3] & 0xFF));
+        }
+        assertArrayEquals(Arrays.copyOfRange(source, sos, source.length),
+                Arrays.copyOfRange(written, sos + inserted, written.length));
+    }
+
+    private static byte[] icc() throws IOException {
+        byte[] icc = Arrays.copyOf("ICC_PROFILE\0".getBytes("US-ASCII"), 64);
+        icc[12] = 1;
+        icc[13] = 1;
+        return icc;
+    }
+
+    private static int count(int[] markers, int marker) {
+        int count = 0;
+        for (int m : markers) {
+            if (m == marker) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int orientation(byte[] data) throws IOException {
+        return ExifOrientationParser.getOrientation(new ByteArrayInputStream(data));
+    }
+
+    private static byte[] write(byte[] source, int degrees) throws IOException {
+        return write(source, degrees, true);
+    }
+
+    private static byte[] write(byte[] source, int degrees, boolean replace) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExifOrientationWriter.write(new ByteArrayInputStream(source), out, degrees, replace);
+        return out.toByteArray();
+    }
+}
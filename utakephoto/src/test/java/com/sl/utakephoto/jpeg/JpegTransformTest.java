@@ -0,0 +1,227 @@
+package com.sl.utakephoto.jpeg;
+
+import com.sl.utakephoto.TestImages;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JpegTransformTest {
+    /**
+     * 无损变换不重新量化，和参考图的差别只来自解码时的舍入
+     */
+    private static final int TOLERANCE = 4;
+    /**
+     * 裁剪和裁边处的色度上采样用到了去掉的相邻像素，只比较内部
+     */
+    private static final int EDGE_MARGIN = 2;
+
+    @Test
+    public void rotateMatchesPixelReference() throws IOException {
+        byte[] source = TestImages.jpeg(64, 48);
+        BufferedImage reference = TestImages.decode(source);
+        for (int degrees : new int[]{0, 90, 180, 270}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertTrue(JpegTransform.rotate(new ByteArrayInputStream(source), out, degrees, false));
+            BufferedImage rotated = TestImages.decode(out.toByteArray());
+            assertEquals(degrees % 180 == 0 ? 64 : 48, rotated.getWidth());
+            assertEquals(degrees % 180 == 0 ? 48 : 64, rotated.getHeight());
+            assertRotated(reference, 0, 0, rotated, degrees, 0);
+        }
+    }
+
+    @Test
+    public void rotateRefusesPartialMcuWithoutTrim() throws IOException {
+        byte[] source = TestImages.jpeg(70, 50);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(JpegTransform.rotate(new ByteArrayInputStream(source), out, 90, false));
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    public void rotateTrimsPartialMcu() throws IOException {
+        byte[] source = TestImages.jpeg(70, 50);
+        BufferedImage reference = TestImages.decode(source);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(JpegTransform.rotate(new ByteArrayInputStream(source), out, 180, true));
+        BufferedImage rotated = TestImages.decode(out.toByteArray());
+        assertEquals(64, rotated.getWidth());
+        assertEquals(48, rotated.getHeight());
+        assertRotated(reference, 0, 0, rotated, 180, EDGE_MARGIN);
+    }
+
+    @Test
+    public void cropMatchesPixelReference() throws IOException {
+        byte[] source = TestImages.jpeg(96, 64);
+        BufferedImage reference = TestImages.decode(source);
+        for (int degrees : new int[]{0, 90, 180, 270}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int[] rect = new int[4];
+            assertTrue(JpegTransform.crop(new ByteArrayInputStream(source), out, 16, 16, 64, 48,
+                    degrees, true, rect));
+            assertArrayEquals(new int[]{16, 16, 64, 48}, rect);
+            BufferedImage cropped = TestImages.decode(out.toByteArray());
+            assertEquals(degrees % 180 == 0 ? 48 : 32, cropped.getWidth());
+            assertEquals(degrees % 180 == 0 ? 32 : 48, cropped.getHeight());
+            assertRotated(reference, 16, 16, cropped, degrees, EDGE_MARGIN);
+        }
+    }
+
+    @Test
+    public void unalignedCropCoversTheRequestedArea() throws IOException {
+        byte[] source = TestImages.jpeg(352, 240);
+        BufferedImage reference = TestImages.decode(source);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] rect = new int[4];
+        assertTrue(JpegTransform.crop(new ByteArrayInputStream(source), out, 300, 200, 333, 211,
+                90, false, rect));
+        assertTrue(rect[0] <= 300 && rect[1] <= 200 && rect[2] >= 333 && rect[3] >= 211);
+        assertEquals(0, rect[0] % 16);
+        assertEquals(0, rect[1] % 16);
+        BufferedImage cropped = TestImages.decode(out.toByteArray());
+        assertEquals(rect[3] - rect[1], cropped.getWidth());
+        assertEquals(rect[2] - rect[0], cropped.getHeight());
+        assertRotated(reference, rect[0], rect[1], cropped, 90, EDGE_MARGIN);
+    }
+
+    @Test
+    public void exactCropRefusesUnalignedArea() throws IOException {
+        byte[] source = TestImages.jpeg(96, 64);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(JpegTransform.crop(new ByteArrayInputStream(source), out, 10, 16, 64, 48, 0, true, null));
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    public void cropRefusesTrimThatLosesPixels() throws IOException {
+        byte[] source = TestImages.jpeg(100, 64);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        //右边到图片边缘，180度时边缘的不完整MCU会被裁掉
+        assertFalse(JpegTransform.crop(new ByteArrayInputStream(source), out, 16, 16, 100, 48, 180, false, null));
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    public void cropOutsideTheImageFails() throws IOException {
+        byte[] source = TestImages.jpeg(64, 48);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(JpegTransform.crop(new ByteArrayInputStream(source), out, 80, 0, 96, 16, 0, false, null));
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    public void notJpegThrows() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] png = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+        try {
+            JpegTransform.rotate(new ByteArrayInputStream(png), out, 90, true);
+            fail("not a JPEG");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    public void corruptDataThrowsIOException() throws IOException {
+        byte[] source = TestImages.jpeg(64, 48);
+        int sos = segment(source, 0xDA);
+
+        byte[] badSelector = source.clone();
+        //第一个分量的DC/AC表号，只有0到3有效
+        badSelector[sos + 6] = 0x55;
+        assertRotateFails(badSelector);
+
+        byte[] badCategory = source.clone();
+        int dht = segment(badCategory, 0xC4);
+        int end = dht + 2 + (((badCategory[dht + 2] & 0xFF) << 8) | (badCategory[dht + 3] & 0xFF));
+        for (int table = dht + 4; table < end; ) {
+            int total = 0;
+            for (int i = 1; i <= 16; i++) {
+                total += badCategory[table + i] & 0xFF;
+            }
+            if ((badCategory[table] & 0xF0) == 0) {
+                Arrays.fill(badCategory, table + 17, table + 17 + total, (byte) 15);
+            }
+            table += 17 + total;
+        }
+        assertRotateFails(badCategory);
+
+        assertRotateFails(Arrays.copyOf(source, sos + 4));
+    }
+
+    @Test
+    public void perfectSizes() {
+        assertTrue(JpegTransform.isPerfect(70, 48, 16, 16, 90));
+        assertFalse(JpegTransform.isPerfect(64, 50, 16, 16, 90));
+        assertFalse(JpegTransform.isPerfect(70, 48, 16, 16, 180));
+        assertTrue(JpegTransform.isPerfect(64, 50, 16, 16, 270));
+        assertTrue(JpegTransform.isPerfect(70, 50, 16, 16, 0));
+    }
+
+    private static void assertRotateFails(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            JpegTransform.rotate(new ByteArrayInputStream(data), out, 90, true);
+            fail("corrupt JPEG");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, out.size());
+    }
+
+    /**
+     * @return 第一个marker段的位置
+     */
+    private static int segment(byte[] jpeg, int marker) {
+        int offset = 2;
+        while ((jpeg[offset + 1] & 0xFF) != marker) {
+            offset += 2 + (((jpeg[offset + 2] & 0xFF) << 8) | (jpeg[offset + 3] & 0xFF));
+        }
+        return offset;
+    }
+
+    /**
+     * 比较actual和reference中从(left, top)开始的区域顺时针旋转degrees后的结果
+     */
+    private static void assertRotated(BufferedImage reference, int left, int top, BufferedImage actual,
+                                      int degrees, int margin) {
+        int width = degrees % 180 == 0 ? actual.getWidth() : actual.getHeight();
+        int height = degrees % 180 == 0 ? actual.getHeight() : actual.getWidth();
+        for (int y = margin; y < actual.getHeight() - margin; y++) {
+            for (int x = margin; x < actual.getWidth() - margin; x++) {
+                int sx;
+                int sy;
+                if (degrees == 90) {
+                    sx = y;
+                    sy = height - 1 - x;
+                } else if (degrees == 180) {
+                    sx = width - 1 - x;
+                    sy = height - 1 - y;
+                } else if (degrees == 270) {
+                    sx = width - 1 - y;
+                    sy = x;
+                } else {
+                    sx = x;
+                    sy = y;
+                }
+                int expected = reference.getRGB(left + sx, top + sy);
+                int pixel = actual.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int diff = Math.abs(((expected >> shift) & 0xFF) - ((pixel >> shift) & 0xFF));
+                    if (diff > TOLERANCE) {
+                        throw new AssertionError(degrees + " degrees, pixel (" + x + ", " + y + ") differs by " + diff);
+                    }
+                }
+            }
+        }
+    }
+}
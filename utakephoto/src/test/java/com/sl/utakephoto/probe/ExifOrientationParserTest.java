@@ -0,0 +1,185 @@
+package com.sl.utakephoto.probe;
+
+import com.sl.utakephoto.TestImages;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExifOrientationParserTest {
+    /**
+     * EXIF方向1-8对应的顺时针角度，镜像的方向只取不翻转的部分
+     */
+    private static final int[] DEGREES = {0, 0, 0, 180, 0, 0, 90, 0, 270};
+
+    @Test
+    public void readsEveryOrientationInBothByteOrders() throws IOException {
+        byte[] jpeg = TestImages.jpeg(16, 16);
+        for (int orientation = 1; orientation <= 8; orientation++) {
+            for (boolean littleEndian : new boolean[]{true, false}) {
+                byte[] data = TestImages.insert(jpeg, TestImages.afterApp0(jpeg), 0xE1,
+                        TestImages.exif(orientation, littleEndian));
+                assertEquals("orientation " + orientation + (littleEndian ? " II" : " MM"),
+                        DEGREES[orientation], orientation(data));
+            }
+        }
+    }
+
+    @Test
+    public void keepsRawValueOfMirroredOrientations() throws IOException {
+        byte[] jpeg = TestImages.jpeg(16, 16);
+        for (int orientation = 1; orientation <= 8; orientation++) {
+            byte[] data = TestImages.insertAfterSoi(jpeg, 0xE1, TestImages.exif(orientation, true));
+            assertEquals(orientation, ExifOrientationParser.getExifOrientation(new ByteArrayInputStream(data)));
+            assertEquals(orientation == 2 || orientation == 4 || orientation == 5 || orientation == 7,
+                    ExifOrientationParser.isMirrored(orientation));
+        }
+        byte[] invalid = TestImages.insertAfterSoi(jpeg, 0xE1, TestImages.exif(9, true));
+        assertEquals(0, ExifOrientationParser.getExifOrientation(new ByteArrayInputStream(invalid)));
+    }
+
+    @Test
+    public void noExifIsZero() throws IOException {
+        assertEquals(0, orientation(TestImages.jpeg(16, 16)));
+    }
+
+    @Test
+    public void skipsOtherApp1BeforeExif() throws IOException {
+        byte[] jpeg = TestImages.jpeg(16, 16);
+        byte[] data = TestImages.insertAfterSoi(jpeg, 0xE1, TestImages.exif(6, false));
+        data = TestImages.insertAfterSoi(data, 0xE1, "http://ns.adobe.com/xap/1.0/\0<x:xmpmeta/>".getBytes("US-ASCII"));
+        assertEquals(90, orientation(data));
+    }
+
+    @Test
+    public void readsExifAtTheStartOfALargestApp1() throws IOException {
+        byte[] exif = TestImages.exif(8, true);
+        byte[] segment = Arrays.copyOf(exif, 0xFFFF - 2);
+        byte[] data = TestImages.insertAfterSoi(TestImages.jpeg(16, 16), 0xE1, segment);
+        assertEquals(270, orientation(data));
+    }
+
+    @Test
+    public void skipsALargestNonExifApp1() throws IOException {
+        byte[] jpeg = TestImages.jpeg(16, 16);
+        byte[] data = TestImages.insertAfterSoi(jpeg, 0xE1, TestImages.exif(3, false));
+        data = TestImages.insertAfterSoi(data, 0xE1, new byte[0xFFFF - 2]);
+        assertEquals(180, orientation(data));
+    }
+
+    @Test
+    public void readsAtMostOneSegmentBufferAndStopsBeforeEntropyData() throws IOException {
+        byte[] jpeg = TestImages.jpeg(256, 256);
+        byte[] data = TestImages.insertAfterSoi(jpeg, 0xE1, new byte[0xFFFF - 2]);
+        CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(data));
+        assertEquals(0, ExifOrientationParser.getOrientation(in));
+        assertTrue(in.count <= sosOffset(data) + 4);
+        assertTrue(in.largestRead <= ExifOrientationParser.MAX_EXIF_LENGTH);
+    }
+
+    @Test
+    public void notJpegIsZero() throws IOException {
+        assertEquals(0, orientation(new byte[]{(byte) 0x89, 'P', 'N', 'G'}));
+        assertEquals(0, orientation(new byte[0]));
+        assertEquals(0, ExifOrientationParser.getOrientation(null));
+    }
+
+    @Test
+    public void endAfterSoiIsZero() throws IOException {
+        assertEquals(0, orientation(new byte[]{(byte) 0xFF, (byte) 0xD8}));
+    }
+
+    @Test
+    public void truncatedSegmentThrows() throws IOException {
+        byte[] data = TestImages.insertAfterSoi(TestImages.jpeg(16, 16), 0xE1, TestImages.exif(6, true));
+        for (int length : new int[]{5, 12, 20}) {
+            try {
+                orientation(Arrays.copyOf(data, length));
+                fail("truncated at " + length);
+            } catch (EOFException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void invalidSegmentLengthIsZero() throws IOException {
+        byte[] data = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE1, 0, 1};
+        assertEquals(0, orientation(data));
+    }
+
+    @Test
+    public void malformedTiffIsZero() throws IOException {
+        byte[] jpeg = TestImages.jpeg(16, 16);
+
+        byte[] badOrder = TestImages.exif(6, true);
+        badOrder[6] = 'X';
+        assertEquals(0, orientation(TestImages.insertAfterSoi(jpeg, 0xE1, badOrder)));
+
+        byte[] badOffset = TestImages.exif(6, false);
+        badOffset[10] = 0x7F;
+        assertEquals(0, orientation(TestImages.insertAfterSoi(jpeg, 0xE1, badOffset)));
+
+        byte[] tooManyEntries = TestImages.exif(6, false);
+        tooManyEntries[14] = 0x7F;
+        tooManyEntries[16] = 0;
+        tooManyEntries[17] = 0;
+        assertEquals(0, orientation(TestImages.insertAfterSoi(jpeg, 0xE1, tooManyEntries)));
+    }
+
+    private static int orientation(byte[] data) throws IOException {
+        return ExifOrientationParser.getOrientation(new ByteArrayInputStream(data));
+    }
+
+    private static int sosOffset(byte[] jpeg) {
+        for (int i = 2; i + 1 < jpeg.length; i++) {
+            if ((jpeg[i] & 0xFF) == 0xFF && (jpeg[i + 1] & 0xFF) == 0xDA) {
+                return i;
+            }
+        }
+        return jpeg.length;
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+        int largestRead;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            largestRead = Math.max(largestRead, len);
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
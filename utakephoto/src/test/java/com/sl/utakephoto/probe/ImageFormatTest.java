@@ -0,0 +1,97 @@
+package com.sl.utakephoto.probe;
+
+import com.sl.utakephoto.TestImages;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class ImageFormatTest {
+
+    @Test
+    public void sniffsJpeg() throws IOException {
+        assertEquals(ImageFormat.JPEG, sniff(TestImages.jpeg(8, 8)));
+    }
+
+    @Test
+    public void sniffsPngGifAndBmp() throws IOException {
+        assertEquals(ImageFormat.PNG, sniff(ImageHeaderParserTest.encode("png", 8, 8)));
+        assertEquals(ImageFormat.GIF, sniff(ImageHeaderParserTest.encode("gif", 8, 8)));
+        assertEquals(ImageFormat.BMP, sniff(ImageHeaderParserTest.encode("bmp", 8, 8)));
+    }
+
+    @Test
+    public void sniffsWebpVariants() throws IOException {
+        assertEquals(ImageFormat.WEBP_LOSSY, sniff(riff("VP8 ")));
+        assertEquals(ImageFormat.WEBP_LOSSLESS, sniff(riff("VP8L")));
+        assertEquals(ImageFormat.WEBP_EXTENDED, sniff(riff("VP8X")));
+        assertEquals(ImageFormat.UNKNOWN, sniff(riff("ALPH")));
+    }
+
+    @Test
+    public void sniffsHeifAndAvifBrands() throws IOException {
+        assertEquals(ImageFormat.HEIF, sniff(ftyp("heic", "mif1")));
+        assertEquals(ImageFormat.HEIF, sniff(ftyp("mif1", "heic")));
+        assertEquals(ImageFormat.AVIF, sniff(ftyp("avif", "mif1")));
+        assertEquals(ImageFormat.AVIF, sniff(ftyp("mif1", "avif")));
+        assertEquals(ImageFormat.UNKNOWN, sniff(ftyp("isom", "mp41")));
+    }
+
+    @Test
+    public void rejectsTextThatStartsWithBm() throws IOException {
+        assertEquals(ImageFormat.UNKNOWN, sniff("BM is not a bitmap header at all".getBytes("US-ASCII")));
+    }
+
+    @Test
+    public void shortOrEmptyHeaderIsUnknown() throws IOException {
+        assertEquals(ImageFormat.UNKNOWN, sniff(new byte[0]));
+        assertEquals(ImageFormat.UNKNOWN, sniff(new byte[]{(byte) 0xFF, (byte) 0xD8}));
+        assertEquals(ImageFormat.UNKNOWN, sniff(Arrays.copyOf(riff("VP8 "), 10)));
+        assertEquals(ImageFormat.UNKNOWN, ImageFormat.sniff((InputStream) null));
+    }
+
+    @Test
+    public void readsAtMostHeaderLength() throws IOException {
+        byte[] data = TestImages.jpeg(8, 8);
+        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        ImageFormat.sniff(in);
+        assertEquals(data.length - ImageFormat.HEADER_LENGTH, in.available());
+    }
+
+    @Test
+    public void mapsMimeTypes() {
+        assertEquals(ImageFormat.JPEG, ImageFormat.fromMimeType("image/jpg"));
+        assertEquals(ImageFormat.JPEG, ImageFormat.fromMimeType("IMAGE/JPEG"));
+        assertEquals(ImageFormat.WEBP_EXTENDED, ImageFormat.fromMimeType("image/webp"));
+        assertEquals(ImageFormat.HEIF, ImageFormat.fromMimeType("image/heic"));
+        assertEquals(ImageFormat.UNKNOWN, ImageFormat.fromMimeType("video/mp4"));
+        assertEquals(ImageFormat.UNKNOWN, ImageFormat.fromMimeType(null));
+    }
+
+    static byte[] riff(String chunk) throws IOException {
+        byte[] header = new byte[ImageFormat.HEADER_LENGTH];
+        System.arraycopy("RIFF".getBytes("US-ASCII"), 0, header, 0, 4);
+        System.arraycopy("WEBP".getBytes("US-ASCII"), 0, header, 8, 4);
+        System.arraycopy(chunk.getBytes("US-ASCII"), 0, header, 12, 4);
+        return header;
+    }
+
+    private static byte[] ftyp(String major, String compatible) throws IOException {
+        byte[] header = new byte[24];
+        header[3] = 24;
+        System.arraycopy("ftyp".getBytes("US-ASCII"), 0, header, 4, 4);
+        System.arraycopy(major.getBytes("US-ASCII"), 0, header, 8, 4);
+        System.arraycopy("isom".getBytes("US-ASCII"), 0, header, 16, 4);
+        System.arraycopy(compatible.getBytes("US-ASCII"), 0, header, 20, 4);
+        return header;
+    }
+
+    private static ImageFormat sniff(byte[] data) throws IOException {
+        return ImageFormat.sniff(new ByteArrayInputStream(data));
+    }
+}
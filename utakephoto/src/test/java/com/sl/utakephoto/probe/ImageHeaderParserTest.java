@@ -0,0 +1,165 @@
+package com.sl.utakephoto.probe;
+
+import com.sl.utakephoto.TestImages;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ImageHeaderParserTest {
+
+    @Test
+    public void parsesJpegSizeAndOrientation() throws IOException {
+        byte[] jpeg = TestImages.jpeg(40, 24);
+        ImageInfo info = parse(jpeg);
+        assertEquals(ImageFormat.JPEG, info.getFormat());
+        assertEquals(40, info.getWidth());
+        assertEquals(24, info.getHeight());
+        assertEquals(0, info.getOrientation());
+
+        info = parse(TestImages.insert(jpeg, TestImages.afterApp0(jpeg), 0xE1, TestImages.exif(6, true)));
+        assertEquals(40, info.getWidth());
+        assertEquals(24, info.getHeight());
+        assertEquals(90, info.getOrientation());
+        assertEquals(24, info.getRotatedWidth());
+        assertEquals(40, info.getRotatedHeight());
+    }
+
+    @Test
+    public void keepsMirroredExifOrientation() throws IOException {
+        byte[] jpeg = TestImages.jpeg(40, 24);
+        ImageInfo info = parse(TestImages.insertAfterSoi(jpeg, 0xE1, TestImages.exif(5, false)));
+        assertEquals(0, info.getOrientation());
+        assertEquals(5, info.getExifOrientation());
+        assertTrue(info.isMirrored());
+
+        info = parse(jpeg);
+        assertEquals(0, info.getExifOrientation());
+        assertFalse(info.isMirrored());
+    }
+
+    @Test
+    public void parsesPngGifAndBmp() throws IOException {
+        for (String format : new String[]{"png", "gif", "bmp"}) {
+            ImageInfo info = parse(encode(format, 33, 17));
+            assertEquals(format, 33, info.getWidth());
+            assertEquals(format, 17, info.getHeight());
+        }
+    }
+
+    @Test
+    public void parsesTopDownBmp() throws IOException {
+        byte[] bmp = encode("bmp", 33, 17);
+        int height = -17;
+        for (int i = 0; i < 4; i++) {
+            bmp[22 + i] = (byte) (height >> (8 * i));
+        }
+        assertEquals(17, parse(bmp).getHeight());
+    }
+
+    @Test
+    public void parsesWebpHeaders() throws IOException {
+        byte[] lossy = ImageFormatTest.riff("VP8 ");
+        lossy[23] = (byte) 0x9D;
+        lossy[24] = 0x01;
+        lossy[25] = 0x2A;
+        lossy[26] = (byte) 0x20;
+        lossy[27] = 0x03;
+        lossy[28] = (byte) 0x58;
+        lossy[29] = 0x02;
+        assertSize(800, 600, parse(lossy));
+
+        byte[] lossless = ImageFormatTest.riff("VP8L");
+        lossless[20] = 0x2F;
+        int bits = (800 - 1) | ((600 - 1) << 14);
+        for (int i = 0; i < 4; i++) {
+            lossless[21 + i] = (byte) (bits >> (8 * i));
+        }
+        assertSize(800, 600, parse(lossless));
+
+        byte[] extended = ImageFormatTest.riff("VP8X");
+        for (int i = 0; i < 3; i++) {
+            extended[24 + i] = (byte) ((5000 - 1) >> (8 * i));
+            extended[27 + i] = (byte) ((3000 - 1) >> (8 * i));
+        }
+        assertSize(5000, 3000, parse(extended));
+    }
+
+    @Test
+    public void truncatedJpegBeforeFrameHasNoBounds() throws IOException {
+        byte[] jpeg = TestImages.jpeg(40, 24);
+        int sof = 2;
+        while (!ImageHeaderParser.isStartOfFrame(jpeg[sof + 1] & 0xFF)) {
+            sof += 2 + (((jpeg[sof + 2] & 0xFF) << 8) | (jpeg[sof + 3] & 0xFF));
+        }
+        ImageInfo info = parse(Arrays.copyOf(jpeg, sof));
+        assertEquals(ImageFormat.JPEG, info.getFormat());
+        assertFalse(info.hasBounds());
+
+        try {
+            parse(Arrays.copyOf(jpeg, sof + 6));
+            fail("truncated frame header");
+        } catch (EOFException expected) {
+        }
+    }
+
+    @Test
+    public void malformedHeadersHaveNoBounds() throws IOException {
+        byte[] shortFrame = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xC0, 0, 4, 8, 0};
+        assertFalse(parse(shortFrame).hasBounds());
+
+        byte[] badLength = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 1};
+        assertFalse(parse(badLength).hasBounds());
+
+        byte[] zeroSize = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xC0, 0, 11, 8, 0, 0, 0, 16, 1, 1, 0x11, 0};
+        assertFalse(parse(zeroSize).hasBounds());
+
+        byte[] lossyWithoutStartCode = ImageFormatTest.riff("VP8 ");
+        ImageInfo info = parse(lossyWithoutStartCode);
+        assertEquals(ImageFormat.WEBP_LOSSY, info.getFormat());
+        assertFalse(info.hasBounds());
+
+        info = parse(Arrays.copyOf(encode("png", 8, 8), 20));
+        assertEquals(ImageFormat.PNG, info.getFormat());
+        assertFalse(info.hasBounds());
+    }
+
+    @Test
+    public void unknownFormatHasNoBounds() throws IOException {
+        ImageInfo info = parse("plain text, not an image".getBytes("US-ASCII"));
+        assertEquals(ImageFormat.UNKNOWN, info.getFormat());
+        assertFalse(info.hasBounds());
+        assertEquals(ImageInfo.UNKNOWN_SIZE, info.getSize());
+    }
+
+    static byte[] encode(String format, int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height,
+                "gif".equals(format) ? BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, format, out)) {
+            throw new IOException("no writer for " + format);
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertSize(int width, int height, ImageInfo info) {
+        assertEquals(width, info.getWidth());
+        assertEquals(height, info.getHeight());
+    }
+
+    private static ImageInfo parse(byte[] data) throws IOException {
+        return ImageHeaderParser.parse(new ByteArrayInputStream(data));
+    }
+}